@@ -73,6 +73,10 @@ final public class ActivityFilePickerDemo extends BaseActivity implements
             }
         });
 
+        // list folders in background, and show thumbnails of images
+        mFilePicker.setAsyncLoading(true);
+        mFilePicker.setThumbnailEnabled(true);
+
         // start to browse
         mFilePicker.refresh();
     }
@@ -23,4 +23,10 @@ public class BaseApp extends Application {
         ScreenUtils.init(this);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        GlobalThreadManager.onTrimMemory(level);
+    }
+
 }
@@ -0,0 +1,335 @@
+package com.lx.mystalecode.utils;
+
+import java.util.Arrays;
+
+/**
+ * author: liuxu
+ * date: 2016-04-01
+ *
+ * run tasks in GlobalThreadManager's thread pool after a delay, once or
+ * periodically.
+ *
+ * one timer thread waits for the earliest task in a binary heap and
+ * hands due tasks to the pool, so no pool thread ever sleeps for a
+ * delay. scheduling and cancelling cost O(log n), and a scheduled task
+ * allocates only its Timeout, which is reused for every run of a
+ * periodic task. so thousands of pending timeouts are cheap.
+ *
+ * a periodic task is scheduled again only after its run is done, so
+ * its runs never overlap:
+ * fixed rate - runs at initialDelay + n * period, skipping nothing but
+ *              starting late if a run takes longer than the period.
+ * fixed delay - runs at delay after the previous run is done.
+ *
+ * the timer thread quits when nothing is scheduled for a while, and is
+ * started again on demand.
+ *
+ * see GlobalThreadManager.runInThreadPoolDelayed().
+ */
+public class DelayScheduler {
+
+    private static final long IDLE_TIMEOUT = 30 * 1000; // ms
+
+    private final String mName;
+    private final int mPriority;
+
+    // guarded by mLock
+    private final Object mLock = new Object();
+    private Timeout[] mHeap = new Timeout[16];
+    private int mSize;
+    private Thread mThread;
+    // bumped by cancelAll(), a timeout of an older epoch is cancelled
+    private int mEpoch;
+
+    /**
+     * @param name name of the timer thread
+     * @param priority priority of tasks in the thread pool, see
+     *                 PriorityThreadPool
+     */
+    public DelayScheduler(String name, int priority) {
+        mName = name;
+        mPriority = priority;
+    }
+
+    /**
+     * run a task once, after a delay.
+     * @param runnable the task
+     * @param delay delay, in millisecond
+     * @return the timeout, to cancel it
+     */
+    public Timeout schedule(Runnable runnable, long delay) {
+        return enqueue(new Timeout(this, runnable, 0), delay);
+    }
+
+    /**
+     * run a task periodically, at a fixed rate.
+     * @param runnable the task
+     * @param initialDelay delay of the first run, in millisecond
+     * @param period period between starts of runs, in millisecond
+     * @return the timeout, to cancel it
+     */
+    public Timeout scheduleAtFixedRate(Runnable runnable, long initialDelay, long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive: " + period);
+        }
+        return enqueue(new Timeout(this, runnable, period), initialDelay);
+    }
+
+    /**
+     * run a task periodically, with a fixed delay between runs.
+     * @param runnable the task
+     * @param initialDelay delay of the first run, in millisecond
+     * @param delay delay between the end of a run and the start of
+     *              the next, in millisecond
+     * @return the timeout, to cancel it
+     */
+    public Timeout scheduleWithFixedDelay(Runnable runnable, long initialDelay, long delay) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("delay must be positive: " + delay);
+        }
+        return enqueue(new Timeout(this, runnable, -delay), initialDelay);
+    }
+
+    /**
+     * @return number of tasks waiting for their time
+     */
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mSize;
+        }
+    }
+
+    /**
+     * cancel all scheduled tasks, including periodic tasks being run, or
+     * handed to the pool, right now. they will not run again.
+     */
+    public void cancelAll() {
+        synchronized (mLock) {
+            mEpoch++;
+            for (int i = 0; i < mSize; i++) {
+                mHeap[i].mCancelled = true;
+                mHeap[i].mIndex = -1;
+                mHeap[i] = null;
+            }
+            mSize = 0;
+            mLock.notifyAll();
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private Timeout enqueue(Timeout timeout, long delay) {
+        synchronized (mLock) {
+            timeout.mTime = now() + Math.max(0, delay);
+            timeout.mEpoch = mEpoch;
+            offer(timeout);
+        }
+        return timeout;
+    }
+
+    // must be called with mLock held
+    private void offer(Timeout timeout) {
+        if (timeout.mEpoch != mEpoch) {
+            // a periodic task running when cancelAll() was called
+            timeout.mCancelled = true;
+        }
+        if (timeout.mCancelled) {
+            return;
+        }
+        if (mSize == mHeap.length) {
+            mHeap = Arrays.copyOf(mHeap, mSize * 2);
+        }
+        mHeap[mSize] = timeout;
+        timeout.mIndex = mSize;
+        mSize++;
+        siftUp(timeout.mIndex);
+        if (mThread == null) {
+            mThread = new Thread(mTimerLoop, mName);
+            mThread.setDaemon(true);
+            mThread.start();
+        } else if (timeout.mIndex == 0) {
+            // earlier than what the timer is waiting for
+            mLock.notifyAll();
+        }
+    }
+
+    // must be called with mLock held
+    private void removeAt(int i) {
+        Timeout removed = mHeap[i];
+        removed.mIndex = -1;
+        mSize--;
+        if (i != mSize) {
+            Timeout last = mHeap[mSize];
+            mHeap[i] = last;
+            last.mIndex = i;
+            siftDown(i);
+            if (mHeap[i] == last) {
+                siftUp(i);
+            }
+        }
+        mHeap[mSize] = null;
+    }
+
+    private void siftUp(int i) {
+        Timeout t = mHeap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            Timeout p = mHeap[parent];
+            if (p.mTime <= t.mTime) {
+                break;
+            }
+            mHeap[i] = p;
+            p.mIndex = i;
+            i = parent;
+        }
+        mHeap[i] = t;
+        t.mIndex = i;
+    }
+
+    private void siftDown(int i) {
+        Timeout t = mHeap[i];
+        int half = mSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < mSize && mHeap[right].mTime < mHeap[child].mTime) {
+                child = right;
+            }
+            Timeout c = mHeap[child];
+            if (t.mTime <= c.mTime) {
+                break;
+            }
+            mHeap[i] = c;
+            c.mIndex = i;
+            i = child;
+        }
+        mHeap[i] = t;
+        t.mIndex = i;
+    }
+
+    private final Runnable mTimerLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Timeout due;
+                synchronized (mLock) {
+                    long idleSince = now();
+                    while (true) {
+                        long now = now();
+                        if (mSize > 0) {
+                            long wait = mHeap[0].mTime - now;
+                            if (wait <= 0) {
+                                break;
+                            }
+                            waitQuietly(wait);
+                            idleSince = now();
+                        } else if (now - idleSince >= IDLE_TIMEOUT) {
+                            // started again by offer()
+                            mThread = null;
+                            return;
+                        } else {
+                            waitQuietly(IDLE_TIMEOUT - (now - idleSince));
+                        }
+                    }
+                    due = mHeap[0];
+                    removeAt(0);
+                }
+                try {
+                    GlobalThreadManager.runInThreadPool(due, mPriority);
+                } catch (RuntimeException e) {
+                    // pool is shut down, the task is lost
+                    due.mCancelled = true;
+                }
+            }
+        }
+
+        // must be called with mLock held
+        private void waitQuietly(long millis) {
+            try {
+                mLock.wait(millis);
+            } catch (InterruptedException e) {
+                // check again
+            }
+        }
+    };
+
+    /**
+     * a scheduled task.
+     */
+    public static class Timeout implements Runnable {
+        private final DelayScheduler mScheduler;
+        private final Runnable mRunnable;
+        // 0 for once, > 0 for fixed rate, < 0 for fixed delay
+        private final long mPeriod;
+        // guarded by mScheduler.mLock
+        private long mTime;
+        private int mIndex = -1;
+        private int mEpoch;
+        private volatile boolean mCancelled;
+        // a one time task has started
+        private volatile boolean mStarted;
+
+        Timeout(DelayScheduler scheduler, Runnable runnable, long period) {
+            mScheduler = scheduler;
+            mRunnable = runnable;
+            mPeriod = period;
+        }
+
+        /**
+         * cancel the task. a run already started is not interrupted, but
+         * a periodic task will not run again.
+         * @return false if it was already cancelled, or it is a one time
+         *         task that has started
+         */
+        public boolean cancel() {
+            synchronized (mScheduler.mLock) {
+                if (mCancelled || mStarted) {
+                    return false;
+                }
+                mCancelled = true;
+                if (mIndex >= 0) {
+                    mScheduler.removeAt(mIndex);
+                }
+                return true;
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public boolean isPeriodic() {
+            return mPeriod != 0;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mScheduler.mLock) {
+                if (mEpoch != mScheduler.mEpoch) {
+                    // handed to the pool before cancelAll()
+                    mCancelled = true;
+                }
+                if (mCancelled) {
+                    return;
+                }
+                mStarted = mPeriod == 0;
+            }
+            boolean done = false;
+            try {
+                mRunnable.run();
+                done = true;
+            } finally {
+                // like ScheduledThreadPoolExecutor, a periodic task stops
+                // once a run throws
+                if (mPeriod != 0 && done) {
+                    synchronized (mScheduler.mLock) {
+                        mTime = mPeriod > 0 ? mTime + mPeriod : now() - mPeriod;
+                        mScheduler.offer(this);
+                    }
+                }
+            }
+        }
+    }
+}
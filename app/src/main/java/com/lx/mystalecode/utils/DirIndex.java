@@ -0,0 +1,453 @@
+package com.lx.mystalecode.utils;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * author: liuxu
+ * date: 2016-03-11
+ *
+ * an index of all files and folders under a root folder, which can be
+ * saved to and loaded from a compact binary file.
+ *
+ * for every folder the index keeps its mtime and the name, directory
+ * flag, size and mtime of each child. rescan() is incremental: a folder
+ * whose mtime did not change is not listed again, only its sub folders
+ * are stat-ed to find changes deeper in the tree. so reopening a big
+ * tree costs one stat per folder instead of one per file.
+ *
+ * NOTE:
+ * modifying a file in place does not change the mtime of its folder,
+ * so size and mtime of such file can be stale until the folder changes.
+ * use rescan(true) to re-list everything.
+ *
+ * listFiles() and getSubFiles() answer from the index without touching
+ * the file system. the returned files report isDirectory(), length()
+ * and lastModified() from the index as well. listFilesChecked() stats
+ * the folder first and lists it again if it changed, which is what a
+ * file browser wants.
+ *
+ * folders that are symbolic links are indexed but not walked into, and
+ * the walk stops at MAX_DEPTH, so link or bind mount cycles end.
+ *
+ * all methods are synchronized, and rescan() / load() / save() do I/O,
+ * do not call them in main thread.
+ */
+public class DirIndex {
+
+    public static final String TAG = DirIndex.class.getSimpleName();
+
+    private static final int MAGIC = 0x44495831; // "DIX1"
+    private static final int VERSION = 2;
+    // bytes of a folder record and a child record with empty names, to
+    // check counts read from a corrupt file
+    private static final int MIN_DIR_BYTES = 2 + 8 + 4;
+    private static final int MIN_CHILD_BYTES = 2 + 1 + 8 + 8;
+    private static final int FLAG_DIR = 1;
+    private static final int FLAG_LINK = 2;
+    // deeper folders are not walked into, in case of bind mount cycles
+    private static final int MAX_DEPTH = 64;
+
+    // mtime of some file systems (like FAT on sdcard) is not precise.
+    // a folder changed within this time before a scan may change again
+    // with the same mtime, so it will be listed again on next rescan.
+    private static final long MTIME_GRANULARITY = 2000;
+    private static final long MTIME_UNKNOWN = -1;
+
+    private final File mRoot;
+    private final String mRootPath;
+    private final File mIndexFile;
+    private Map<String, DirRecord> mDirs = new HashMap<String, DirRecord>();
+    private int mFileCount;
+
+    /**
+     * @param root the root folder to index
+     * @param indexFile the file to save the index to
+     */
+    public DirIndex(File root, File indexFile) {
+        mRoot = root.getAbsoluteFile();
+        mRootPath = mRoot.getPath();
+        mIndexFile = indexFile;
+    }
+
+    /**
+     * load index from disk, rescan it and save it back if changed.
+     * @param root the root folder to index
+     * @param indexFile the file the index is saved to
+     * @return the index, up to date
+     */
+    public static DirIndex open(File root, File indexFile) {
+        DirIndex index = new DirIndex(root, indexFile);
+        index.load();
+        if (index.rescan(false) > 0) {
+            try {
+                index.save();
+            } catch (IOException e) {
+                Log.w(TAG, "fail to save index: " + indexFile, e);
+            }
+        }
+        return index;
+    }
+
+    public File getRoot() {
+        return mRoot;
+    }
+
+    /**
+     * @return number of files and folders in the index, root excluded
+     */
+    public synchronized int getFileCount() {
+        return mFileCount;
+    }
+
+    /**
+     * load index from disk. on failure the index is left empty.
+     * @return true if loaded
+     */
+    public synchronized boolean load() {
+        mDirs = new HashMap<String, DirRecord>();
+        mFileCount = 0;
+        if (!mIndexFile.exists()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mIndexFile), 64 * 1024));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !mRootPath.equals(in.readUTF())) {
+                return false;
+            }
+            long length = mIndexFile.length();
+            int dirCount = in.readInt();
+            if (dirCount < 0 || (long) dirCount * MIN_DIR_BYTES > length) {
+                throw new IOException("corrupt folder count: " + dirCount);
+            }
+            Map<String, DirRecord> dirs = new HashMap<String, DirRecord>(dirCount * 4 / 3 + 1);
+            int fileCount = 0;
+            for (int i = 0; i < dirCount; i++) {
+                String path = in.readUTF();
+                long mtime = in.readLong();
+                int count = in.readInt();
+                if (count < 0 || (long) dirCount * MIN_DIR_BYTES
+                        + ((long) fileCount + count) * MIN_CHILD_BYTES > length) {
+                    throw new IOException("corrupt file count: " + count + " in " + path);
+                }
+                DirRecord rec = new DirRecord(mtime, count);
+                for (int j = 0; j < rec.names.length; j++) {
+                    rec.names[j] = in.readUTF();
+                    int flags = in.readByte();
+                    rec.isDir[j] = (flags & FLAG_DIR) != 0;
+                    rec.isLink[j] = (flags & FLAG_LINK) != 0;
+                    rec.sizes[j] = in.readLong();
+                    rec.mtimes[j] = in.readLong();
+                }
+                fileCount += rec.names.length;
+                dirs.put(path, rec);
+            }
+            mDirs = dirs;
+            mFileCount = fileCount;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "fail to load index: " + mIndexFile, e);
+            return false;
+        } finally {
+            FileUtils.closeSilently(in);
+        }
+    }
+
+    /**
+     * save index to disk. a temp file is written first and then renamed,
+     * so the old index is kept if anything goes wrong.
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        File tmp = new File(mIndexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mRootPath);
+            out.writeInt(mDirs.size());
+            for (Map.Entry<String, DirRecord> e : mDirs.entrySet()) {
+                DirRecord rec = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(rec.mtime);
+                out.writeInt(rec.names.length);
+                for (int j = 0; j < rec.names.length; j++) {
+                    out.writeUTF(rec.names[j]);
+                    out.writeByte((rec.isDir[j] ? FLAG_DIR : 0) | (rec.isLink[j] ? FLAG_LINK : 0));
+                    out.writeLong(rec.sizes[j]);
+                    out.writeLong(rec.mtimes[j]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mIndexFile)) {
+            tmp.delete();
+            throw new IOException("fail to rename " + tmp + " to " + mIndexFile);
+        }
+    }
+
+    /**
+     * bring the index up to date with the file system.
+     * @param full true to list every folder again, false to list only
+     *             folders whose mtime changed
+     * @return number of folders listed, 0 means nothing changed
+     */
+    public synchronized int rescan(boolean full) {
+        long scanTime = System.currentTimeMillis();
+        Map<String, DirRecord> dirs = new HashMap<String, DirRecord>(mDirs.size() * 4 / 3 + 16);
+        int listed = 0;
+        int fileCount = 0;
+        Deque<String> stack = new ArrayDeque<String>();
+        Deque<Integer> depths = new ArrayDeque<Integer>();
+        stack.push(mRootPath);
+        depths.push(0);
+        while (!stack.isEmpty()) {
+            String path = stack.pop();
+            int depth = depths.pop();
+            File dir = new File(path);
+            long mtime = dir.lastModified();
+            if (mtime == 0 && !dir.isDirectory()) {
+                // removed since it was found
+                continue;
+            }
+            DirRecord rec = mDirs.get(path);
+            if (full || rec == null || rec.mtime == MTIME_UNKNOWN || rec.mtime != mtime) {
+                rec = scanDir(dir, mtime, scanTime);
+                listed++;
+            }
+            dirs.put(path, rec);
+            fileCount += rec.names.length;
+            if (depth >= MAX_DEPTH) {
+                Log.w(TAG, "too deep, maybe a cycle: " + path);
+                continue;
+            }
+            for (int i = rec.names.length - 1; i >= 0; i--) {
+                if (rec.isDir[i] && !rec.isLink[i]) {
+                    stack.push(childPath(path, rec.names[i]));
+                    depths.push(depth + 1);
+                }
+            }
+        }
+        if (dirs.size() != mDirs.size()) {
+            // folders removed
+            listed = Math.max(listed, 1);
+        }
+        mDirs = dirs;
+        mFileCount = fileCount;
+        return listed;
+    }
+
+    /**
+     * list a folder from the index, same as File.listFiles(FileFilter).
+     * @param dir the folder
+     * @param filter filter, can be null
+     * @return children of the folder, or null if it is not in the index
+     */
+    public synchronized File[] listFiles(File dir, FileFilter filter) {
+        String path = dir.getAbsolutePath();
+        DirRecord rec = mDirs.get(path);
+        if (rec == null) {
+            return null;
+        }
+        List<File> list = new ArrayList<File>(rec.names.length);
+        for (int i = 0; i < rec.names.length; i++) {
+            File f = rec.toFile(path, i);
+            if (filter == null || filter.accept(f)) {
+                list.add(f);
+            }
+        }
+        return list.toArray(new File[list.size()]);
+    }
+
+    /**
+     * list a folder like listFiles(), but stat it first: if it changed
+     * since it was indexed, or is not indexed yet, it is listed from the
+     * file system and the index is updated (call save() to keep it).
+     * @param dir the folder, must be the root or under it
+     * @param filter filter, can be null
+     * @return children of the folder, or null if it is not a folder under
+     *         the root
+     */
+    public synchronized File[] listFilesChecked(File dir, FileFilter filter) {
+        String path = dir.getAbsolutePath();
+        if (!path.equals(mRootPath) && !path.startsWith(childPath(mRootPath, ""))) {
+            return null;
+        }
+        long mtime = dir.lastModified();
+        if (mtime == 0 && !dir.isDirectory()) {
+            return null;
+        }
+        DirRecord rec = mDirs.get(path);
+        if (rec == null || rec.mtime == MTIME_UNKNOWN || rec.mtime != mtime) {
+            DirRecord fresh = scanDir(dir, mtime, System.currentTimeMillis());
+            DirRecord old = mDirs.put(path, fresh);
+            mFileCount += fresh.names.length - (old == null ? 0 : old.names.length);
+        }
+        return listFiles(dir, filter);
+    }
+
+    /**
+     * same as FileUtils.getSubFiles(), but answered from the index.
+     * @param folder the folder, must be the root or under it
+     * @param filter a FileFilter to filter files
+     * @param depth depth limit, 0 and negative means no limit
+     * @param includeSelf whether the folder itself should be added
+     * @return the list, or null if folder is not in the index
+     */
+    public synchronized List<File> getSubFiles(File folder, FileFilter filter,
+                                               int depth, boolean includeSelf) {
+        String path = folder.getAbsolutePath();
+        if (!mDirs.containsKey(path)) {
+            return null;
+        }
+        int maxDepth = depth <= 0 ? Integer.MAX_VALUE : depth;
+        List<File> list = new ArrayList<File>();
+        if (includeSelf) {
+            list.add(folder);
+        }
+        collect(path, 0, maxDepth, filter, list);
+        return list;
+    }
+
+    private void collect(String path, int depth, int maxDepth,
+                         FileFilter filter, List<File> out) {
+        if (depth >= maxDepth) {
+            return;
+        }
+        DirRecord rec = mDirs.get(path);
+        if (rec == null) {
+            return;
+        }
+        for (int i = 0; i < rec.names.length; i++) {
+            File f = rec.toFile(path, i);
+            if (filter != null && !filter.accept(f)) {
+                continue;
+            }
+            out.add(f);
+            if (rec.isDir[i]) {
+                collect(f.getPath(), depth + 1, maxDepth, filter, out);
+            }
+        }
+    }
+
+    private static DirRecord scanDir(File dir, long mtime, long scanTime) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        boolean stable = scanTime - mtime >= MTIME_GRANULARITY;
+        DirRecord rec = new DirRecord(stable ? mtime : MTIME_UNKNOWN, files.length);
+        String canonicalDir = null;
+        for (int i = 0; i < files.length; i++) {
+            File f = files[i];
+            rec.names[i] = f.getName();
+            rec.isDir[i] = f.isDirectory();
+            rec.sizes[i] = rec.isDir[i] ? 0 : f.length();
+            rec.mtimes[i] = f.lastModified();
+            if (rec.isDir[i]) {
+                if (canonicalDir == null) {
+                    canonicalDir = getCanonicalPath(dir);
+                }
+                rec.isLink[i] = canonicalDir == null || !childPath(canonicalDir, rec.names[i])
+                        .equals(getCanonicalPath(f));
+            }
+        }
+        return rec;
+    }
+
+    // null if failed
+    private static String getCanonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String childPath(String parent, String name) {
+        return parent.endsWith(File.separator) ?
+                parent + name : parent + File.separator + name;
+    }
+
+    // children of one folder, kept in parallel arrays to save memory
+    private static class DirRecord {
+        final long mtime;
+        final String[] names;
+        final boolean[] isDir;
+        // folders that are symbolic links, not walked into
+        final boolean[] isLink;
+        final long[] sizes;
+        final long[] mtimes;
+
+        DirRecord(long mtime, int count) {
+            this.mtime = mtime;
+            this.names = new String[count];
+            this.isDir = new boolean[count];
+            this.isLink = new boolean[count];
+            this.sizes = new long[count];
+            this.mtimes = new long[count];
+        }
+
+        IndexedFile toFile(String parent, int i) {
+            return new IndexedFile(childPath(parent, names[i]),
+                    isDir[i], sizes[i], mtimes[i]);
+        }
+    }
+
+    /**
+     * a File returned by DirIndex. isDirectory(), isFile(), length()
+     * and lastModified() are answered from the index without a stat.
+     */
+    public static class IndexedFile extends File {
+        private final boolean mIsDir;
+        private final long mSize;
+        private final long mMtime;
+
+        IndexedFile(String path, boolean isDir, long size, long mtime) {
+            super(path);
+            mIsDir = isDir;
+            mSize = size;
+            mMtime = mtime;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return mIsDir;
+        }
+
+        @Override
+        public boolean isFile() {
+            return !mIsDir;
+        }
+
+        @Override
+        public long length() {
+            return mSize;
+        }
+
+        @Override
+        public long lastModified() {
+            return mMtime;
+        }
+    }
+}
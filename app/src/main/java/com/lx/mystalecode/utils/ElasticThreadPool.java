@@ -0,0 +1,178 @@
+package com.lx.mystalecode.utils;
+
+import android.os.Process;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * author: liuxu
+ * date: 2016-03-29
+ *
+ * a cached thread pool with an upper bound.
+ *
+ * a task runs in an idle thread if there is one, or in a new thread
+ * otherwise, so it starts at once like in new Thread().start(), but
+ * threads are reused. threads quit after being idle for a while. when
+ * the thread count reaches the cap, tasks wait in a queue instead of
+ * creating more threads.
+ *
+ * threads are named and run tasks with the given android thread
+ * priority (Process.THREAD_PRIORITY_*).
+ *
+ * used by GlobalThreadManager.runInSingleThread().
+ */
+public class ElasticThreadPool extends ThreadPoolExecutor {
+
+    private static final int RATE_WINDOW = 64; // creations kept
+    private static final long RATE_PERIOD = 60 * 1000; // ms
+
+    private final String mName;
+    private volatile int mThreadPriority;
+    private final AtomicInteger mThreadNumber = new AtomicInteger(1);
+    private final AtomicInteger mLiveCount = new AtomicInteger();
+    private final AtomicInteger mPeakCount = new AtomicInteger();
+    private final AtomicLong mCreatedCount = new AtomicLong();
+    // time of recent thread creations, a ring guarded by itself
+    private final long[] mCreateTimes = new long[RATE_WINDOW];
+
+    /**
+     * @param name prefix of thread names
+     * @param threadPriority android thread priority, like
+     *                       Process.THREAD_PRIORITY_BACKGROUND
+     * @param maxThreads max number of threads
+     * @param idleSeconds idle time before a thread quits
+     */
+    public ElasticThreadPool(String name, int threadPriority, int maxThreads, long idleSeconds) {
+        super(0, maxThreads, idleSeconds, TimeUnit.SECONDS, new ElasticQueue());
+        mName = name;
+        mThreadPriority = threadPriority;
+        ((ElasticQueue) getQueue()).mPool = this;
+        setThreadFactory(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                onThreadCreated();
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            mLiveCount.decrementAndGet();
+                        }
+                    }
+                }, mName + "#" + mThreadNumber.getAndIncrement());
+            }
+        });
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("pool is shut down");
+                }
+                // at the cap, wait for a thread
+                ((ElasticQueue) getQueue()).forceOffer(r);
+            }
+        });
+    }
+
+    /**
+     * @param threadPriority android thread priority for tasks run from now on
+     */
+    public void setThreadPriority(int threadPriority) {
+        mThreadPriority = threadPriority;
+    }
+
+    public int getThreadPriority() {
+        return mThreadPriority;
+    }
+
+    /**
+     * @return number of threads alive
+     */
+    public int getLiveThreadCount() {
+        return mLiveCount.get();
+    }
+
+    /**
+     * @return max number of threads ever alive at the same time
+     */
+    public int getPeakThreadCount() {
+        return mPeakCount.get();
+    }
+
+    /**
+     * @return number of threads ever created
+     */
+    public long getCreatedThreadCount() {
+        return mCreatedCount.get();
+    }
+
+    /**
+     * @return number of threads created in the last minute, at most 64
+     */
+    public int getCreationRate() {
+        long since = System.currentTimeMillis() - RATE_PERIOD;
+        int count = 0;
+        synchronized (mCreateTimes) {
+            for (long time : mCreateTimes) {
+                if (time > since) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void onThreadCreated() {
+        long created = mCreatedCount.getAndIncrement();
+        int live = mLiveCount.incrementAndGet();
+        int peak;
+        while (live > (peak = mPeakCount.get())) {
+            if (mPeakCount.compareAndSet(peak, live)) {
+                break;
+            }
+        }
+        synchronized (mCreateTimes) {
+            mCreateTimes[(int) (created % RATE_WINDOW)] = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        // a task may have changed it
+        Process.setThreadPriority(mThreadPriority);
+    }
+
+    @Override
+    public String toString() {
+        return mName + ": live=" + getLiveThreadCount() + " active=" + getActiveCount()
+                + " peak=" + getPeakThreadCount() + " created=" + getCreatedThreadCount()
+                + " createdLastMinute=" + getCreationRate() + " queued=" + getQueue().size();
+    }
+
+    // refuses a task unless a thread is idle, so that the pool creates
+    // a new thread for it. see rejectedExecution() for the cap.
+    private static class ElasticQueue extends LinkedBlockingQueue<Runnable> {
+        ThreadPoolExecutor mPool;
+
+        @Override
+        public boolean offer(Runnable r) {
+            if (mPool.getActiveCount() + size() < mPool.getPoolSize()) {
+                return super.offer(r);
+            }
+            return false;
+        }
+
+        void forceOffer(Runnable r) {
+            super.offer(r);
+        }
+    }
+}
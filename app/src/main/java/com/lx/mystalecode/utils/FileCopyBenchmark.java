@@ -0,0 +1,121 @@
+package com.lx.mystalecode.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * author: liuxu
+ * date: 2016-04-08
+ *
+ * compare the ways FileUtils copies a file, on a real device and volume:
+ * STREAM   - 4KB heap buffer, what copyToFile() used to do
+ * TRANSFER - FileChannel.transferTo(), what copyFile() does now
+ * DIRECT   - direct ByteBuffer, the fallback of TRANSFER
+ *
+ * every size is copied a few times with each way, the best run is
+ * reported, so that the result is not skewed by a cold cache. to test
+ * copying between volumes, pass a source dir on one and a target dir on
+ * the other.
+ *
+ * it writes several hundred MB, do not call it in main thread.
+ */
+public class FileCopyBenchmark {
+
+    public static final String TAG = FileCopyBenchmark.class.getSimpleName();
+
+    public static final long[] DEFAULT_SIZES = {
+            4 * 1024, 64 * 1024, 1024 * 1024, 16 * 1024 * 1024, 64 * 1024 * 1024 };
+
+    private static final int ROUNDS = 3;
+    private static final String[] METHODS = { "STREAM", "TRANSFER", "DIRECT" };
+
+    /**
+     * run the benchmark and log the result.
+     * @param srcDir folder to create source files in
+     * @param destDir folder to copy files to
+     * @param sizes file sizes to test, in bytes
+     * @return the result, one line per size
+     * @throws IOException
+     */
+    public static String run(File srcDir, File destDir, long[] sizes) throws IOException {
+        GlobalThreadManager.throwExceptionIfInMainThread("benchmark in main thread");
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%10s", "size"));
+        for (String method : METHODS) {
+            sb.append(String.format(Locale.US, "%14s", method));
+        }
+        sb.append(" (MB/s, best of ").append(ROUNDS).append(")\n");
+        File src = new File(srcDir, "copy_benchmark.src");
+        File dest = new File(destDir, "copy_benchmark.dest");
+        try {
+            for (long size : sizes) {
+                createFile(src, size);
+                sb.append(String.format(Locale.US, "%10d", size));
+                for (int m = 0; m < METHODS.length; m++) {
+                    long best = Long.MAX_VALUE;
+                    for (int i = 0; i < ROUNDS; i++) {
+                        best = Math.min(best, copy(src, dest, m));
+                    }
+                    double mbps = size / 1048576.0 / Math.max(best, 1) * 1e9;
+                    sb.append(String.format(Locale.US, "%14.1f", mbps));
+                }
+                sb.append('\n');
+            }
+        } finally {
+            src.delete();
+            dest.delete();
+        }
+        Log.i(TAG, sb.toString());
+        return sb.toString();
+    }
+
+    // returns time spent, in nanoseconds. sync is included, like in
+    // FileUtils.copyToFile()
+    private static long copy(File src, File dest, int method) throws IOException {
+        dest.delete();
+        long start = System.nanoTime();
+        FileInputStream in = new FileInputStream(src);
+        FileOutputStream out = new FileOutputStream(dest);
+        try {
+            switch (method) {
+            case 0:
+                FileUtils.copyStream(in, out);
+                break;
+            case 1:
+                FileUtils.copyChannel(in.getChannel(), out.getChannel());
+                break;
+            default:
+                FileUtils.copyChannelBuffered(in.getChannel(), out.getChannel());
+                break;
+            }
+            out.getFD().sync();
+        } finally {
+            FileUtils.closeSilently(in);
+            FileUtils.closeSilently(out);
+        }
+        long time = System.nanoTime() - start;
+        if (dest.length() != src.length()) {
+            throw new IOException("copy is broken: " + METHODS[method]);
+        }
+        return time;
+    }
+
+    private static void createFile(File file, long size) throws IOException {
+        byte[] data = new byte[64 * 1024];
+        new Random(size).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += data.length) {
+                out.write(data, 0, (int) Math.min(data.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
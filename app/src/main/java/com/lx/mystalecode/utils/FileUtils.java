@@ -22,12 +22,14 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * created by liuxu. many methods here are collected from various sites.
@@ -39,63 +41,91 @@ public class FileUtils {
 
     public static final String TAG = FileUtils.class.getSimpleName();
 
+    private static final int STREAM_BUFFER_SIZE = 4096;
+    // transferTo() may be limited per call by the kernel, copy in steps
+    private static final long TRANSFER_STEP = 8 * 1024 * 1024;
+    private static final int DIRECT_BUFFER_SIZE = 256 * 1024;
+
+    // larger files are memory mapped by readTextFile()
+    private static final long MAP_THRESHOLD = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // what copyToFile() does without a SyncGroup
+    private static final SyncGroup sSyncEach = new SyncGroup(SyncGroup.Mode.EACH, false);
+
+    // reused by copyChannelBuffered() in every thread
+    private static final ThreadLocal<ByteBuffer> sDirectBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+        }
+    };
+
     // ===============================================================
     // zip operations
 
     /**
      * author: liuxu
-     * pack dir into a zip file
+     * pack dir into a zip file, including all its sub folders.
      * @param dir the dir to zip.
      * @param zipName the target zip file path
      * @throws java.io.IOException
      */
     public static void dir2zip(String dir, String zipName) throws IOException {
+        dir2zip(dir, zipName, null);
+    }
+
+    /**
+     * author: liuxu
+     * pack dir into a zip file, including all its sub folders.
+     * already compressed files (jpg, mp4, etc.) are stored instead of
+     * deflated. see ZipEngine for more options.
+     * @param dir the dir to zip.
+     * @param zipName the target zip file path
+     * @param listener callback for progress, can be null
+     * @throws java.io.IOException
+     */
+    public static void dir2zip(String dir, String zipName,
+                               ZipEngine.ProgressListener listener) throws IOException {
         File dirFile = new File(dir);
         if (!dirFile.exists()) {
             throw new IOException("dir not exists");
         }
-        File[] fileList = dirFile.listFiles();
+        String[] fileList = dirFile.list();
         if (fileList == null || fileList.length == 0) {
             throw new IOException("dir is empty");
         }
-
-        final int bufferSize = 1024;
-        ZipOutputStream zos;
-        ZipEntry ze;
-        byte[] buf = new byte[bufferSize];
-        int readLen;
-
-        zos = new ZipOutputStream(new FileOutputStream(zipName));
-        for(File f : fileList) {
-            ze = new ZipEntry(getRelativeFileName(dir, f));
-            ze.setSize(f.length());
-            ze.setTime(f.lastModified());
-            zos.putNextEntry(ze);
-            InputStream is = new BufferedInputStream(new FileInputStream(f));
-            while ((readLen=is.read(buf, 0, bufferSize)) != -1) {
-                zos.write(buf, 0, readLen);
-            }
-            is.close();
-        }
-        zos.close();
+        new ZipEngine()
+                .setProgressListener(listener)
+                .zip(dirFile, new File(zipName));
     }
 
-    // returns a file path relative to baseDir
-    private static String getRelativeFileName(String baseDir, File file){
-        File real = file;
-        File base = new File(baseDir);
-        String ret = real.getName();
-        while (true) {
-            real = real.getParentFile();
-            if(real == null)
-                break;
-            if(real.equals(base)) {
-                break;
-            } else {
-                ret = real.getName() + "/" + ret;
-            }
+
+    /**
+     * author: liuxu
+     * pack dir into a zip file, including all its sub folders.
+     * files are deflated in parallel using GlobalThreadManager's compute
+     * pool, see ParallelZipWriter for details.
+     * NOTE: this method blocks until done, and should not be called in
+     * GlobalThreadManager's compute pool.
+     * @param dir the dir to zip.
+     * @param zipName the target zip file path
+     * @param listener callback for progress, can be null
+     * @throws java.io.IOException
+     */
+    public static void dir2zipParallel(String dir, String zipName,
+                                       ZipEngine.ProgressListener listener) throws IOException {
+        File dirFile = new File(dir);
+        if (!dirFile.exists()) {
+            throw new IOException("dir not exists");
+        }
+        String[] fileList = dirFile.list();
+        if (fileList == null || fileList.length == 0) {
+            throw new IOException("dir is empty");
         }
-        return ret;
+        new ParallelZipWriter()
+                .setProgressListener(listener)
+                .zip(dirFile, new File(zipName));
     }
 
 
@@ -116,6 +146,10 @@ public class FileUtils {
     /**
      * author: liuxu
      * get a list of files and folders under a folder.
+     * the list is in depth first order: every folder is followed by its
+     * whole subtree, before its next sibling (see FileWalker). before
+     * FileWalker, all children of a folder came before any of their
+     * subtrees, and a sub folder was listed twice.
      * @param folder
      *            the folder
      * @param filter
@@ -130,105 +164,127 @@ public class FileUtils {
      */
     public static List<File> getSubFiles(String folder, FileFilter filter,
                                          int depth, boolean includeSelf) {
-        File folderFile = new File(folder);
-        SubFileHandler handler;
-        try {
-            handler = new SubFileHandler(folderFile, filter, depth, includeSelf);
-        } catch (IllegalArgumentException e) {
-            //e.printStackTrace();
+        FileWalker walker = iterateSubFiles(folder, filter, depth, includeSelf);
+        if (walker == null) {
             return null;
         }
-        return handler.getSubFiles();
+        List<File> retList = new ArrayList<File>();
+        while (walker.hasNext()) {
+            retList.add(walker.next());
+        }
+        return retList;
     }
 
-    private static class SubFileHandler {
-        private int mDepthTotal;
-        private boolean mIncludeSelf;
-        private File mFolder;
-        private FileFilter mFilter;
-
-        // use this class to mark depth for each file
-        private class FileWrapper {
-            int depth;
-            File file;
-
-            FileWrapper(File file, int depth) {
-                this.file = file;
-                this.depth = depth;
-            }
-
-            List<FileWrapper> listFileWrapper() {
-                if (this.file.isDirectory()) {
-                    List<FileWrapper> list = new ArrayList<FileWrapper>();
-                    File[] files = this.file.listFiles(mFilter);
-                    for (File f : files) {
-                        list.add(new FileWrapper(f, this.depth + 1));
-                    }
-                    return list;
-                } else {
-                    return null;
-                }
-            }
+    /**
+     * author: liuxu
+     * same as getSubFiles() above, but answered from a DirIndex, which is
+     * rescanned incrementally first. so only folders changed since last
+     * time are listed again. falls back to getSubFiles() if folder is not
+     * under the root of the index.
+     * @param index the index
+     * @param folder
+     *            the folder
+     * @param filter
+     *            a FileFilter to filter files
+     * @param depth
+     *            only search files at the depth limit. 0 and negative
+     *            value will be considered as no limit for depth.
+     * @param includeSelf
+     *            whether the folder itself should be added
+     *            into the list
+     * @return the list
+     */
+    public static List<File> getSubFiles(DirIndex index, String folder, FileFilter filter,
+                                         int depth, boolean includeSelf) {
+        index.rescan(false);
+        List<File> list = index.getSubFiles(new File(folder), filter, depth, includeSelf);
+        return list != null ? list : getSubFiles(folder, filter, depth, includeSelf);
+    }
 
-            boolean isDirectory() {
-                return this.file.isDirectory();
-            }
+    /**
+     * author: liuxu
+     * lazily iterate files and folders under a folder, depth first.
+     * nothing is listed before hasNext() is called, and only folders on
+     * the current path are held in memory.
+     * call FileWalker.skipSubtree() to skip the folder just returned.
+     * @param folder
+     *            the folder
+     * @param filter
+     *            a FileFilter to filter files
+     * @param depth
+     *            only search files at the depth limit. 0 and negative
+     *            value will be considered as no limit for depth.
+     * @param includeSelf
+     *            whether the folder itself should be returned first
+     * @return the iterator, or null if folder does not exist
+     */
+    public static FileWalker iterateSubFiles(String folder, FileFilter filter,
+                                             int depth, boolean includeSelf) {
+        try {
+            return new FileWalker(new File(folder), filter, depth, includeSelf);
+        } catch (IllegalArgumentException e) {
+            //e.printStackTrace();
+            return null;
         }
+    }
 
-        public SubFileHandler(File folder, FileFilter filter,
-                              int depth, boolean includeSelf) throws IllegalArgumentException {
-            mFolder = folder;
-            mFilter = filter;
-            mIncludeSelf = includeSelf;
-
-            if (!mFolder.exists()) {
-                // should be a folder to go on
-                throw new IllegalArgumentException(
-                        "not a valid folder: " + folder);
-            }
-
-            if (depth <= 0) {
-                // consider 0 and negative number as no limit.
-                mDepthTotal = Integer.MAX_VALUE;
-            } else {
-                mDepthTotal = depth;
-            }
-        }
+    /**
+     * author: liuxu
+     * walk through files and folders under a folder, depth first.
+     * the visitor decides whether to go on, skip a folder, or stop.
+     * @param folder
+     *            the folder
+     * @param filter
+     *            a FileFilter to filter files
+     * @param depth
+     *            only search files at the depth limit. 0 and negative
+     *            value will be considered as no limit for depth.
+     * @param includeSelf
+     *            whether the folder itself should be visited
+     * @param visitor
+     *            the visitor
+     * @return false if folder does not exist or the walk is terminated
+     *         by visitor, true otherwise
+     */
+    public static boolean walkSubFiles(String folder, FileFilter filter,
+                                       int depth, boolean includeSelf,
+                                       FileWalker.Visitor visitor) {
+        FileWalker walker = iterateSubFiles(folder, filter, depth, includeSelf);
+        return walker != null && walker.walk(visitor);
+    }
 
-        public List<File> getSubFiles() {
-            List<FileWrapper> list = new ArrayList<FileWrapper>();
-            FileWrapper root = new FileWrapper(mFolder, 0);
-            doGetSubFiles(root, list);
-            if (!mIncludeSelf) {
-                // the folder being searched is always the first
-                // element in the list
-                list.remove(0);
-            }
-            List<File> retList = new ArrayList<File>();
-            for (FileWrapper f : list) {
-                retList.add(f.file);
-            }
-            return retList;
-        }
 
-        // recursively add sub files into the list
-        private void doGetSubFiles(
-                FileWrapper wrapper, List<FileWrapper> list) {
-            if (wrapper.isDirectory()) {
-                list.add(wrapper);
-            }
-            if (wrapper.depth >= mDepthTotal) {
-                // folder depth reaches the limit, stop recursion
-                return;
-            }
-            List<FileWrapper> wrapperList = wrapper.listFileWrapper();
-            if (wrapperList != null) {
-                list.addAll(wrapperList);
-                for (FileWrapper f : wrapperList) {
-                    doGetSubFiles(f, list);
-                }
-            }
+    /**
+     * author: liuxu
+     * get a list of files and folders under a folder, using several
+     * threads. see ParallelFileWalker for details.
+     * @param folder
+     *            the folder
+     * @param filter
+     *            a FileFilter to filter files. it is called in several
+     *            threads at the same time.
+     * @param depth
+     *            only search files at the depth limit. 0 and negative
+     *            value will be considered as no limit for depth.
+     * @param includeSelf
+     *            whether the folder itself should be added
+     *            into the list
+     * @param ordered
+     *            true to get the same list as getSubFiles() returns,
+     *            false to get it faster but in no particular order
+     * @return the list
+     */
+    public static List<File> getSubFilesParallel(String folder, FileFilter filter,
+                                                 int depth, boolean includeSelf,
+                                                 boolean ordered) {
+        ParallelFileWalker walker;
+        try {
+            walker = new ParallelFileWalker(new File(folder), filter, depth, includeSelf);
+        } catch (IllegalArgumentException e) {
+            //e.printStackTrace();
+            return null;
         }
+        return walker.walk(ordered);
     }
 
 
@@ -444,7 +500,7 @@ public class FileUtils {
         }
         File destParent = destFile.getParentFile();
         targetParentExist =
-                (destParent == null || !destParent.exists());
+                (destParent == null || destParent.exists());
         if (!targetParentExist) {
             if (createParent) {
                 destParent.mkdirs();
@@ -463,11 +519,24 @@ public class FileUtils {
      * @return true if succeed, false otherwise.
      */
     public static boolean copyFile(File srcFile, File destFile) {
+        return copyFile(srcFile, destFile, null);
+    }
+
+    /**
+     * copy a file from srcFile to destFile, return true if succeed,
+     * false otherwise.
+     * @param srcFile
+     * @param destFile
+     * @param group how destFile is synced, see SyncGroup. null to sync it
+     *              before return.
+     * @return true if succeed, false otherwise.
+     */
+    public static boolean copyFile(File srcFile, File destFile, SyncGroup group) {
         boolean result = false;
         try {
             InputStream in = new FileInputStream(srcFile);
             try {
-                result = copyToFile(in, destFile);
+                result = copyToFile(in, destFile, group);
             } finally {
                 in.close();
             }
@@ -477,36 +546,167 @@ public class FileUtils {
         return result;
     }
 
+    /**
+     * copy a large file in chunks, so that an interrupted copy goes on
+     * from where it stopped when called again, see ResumableCopier.
+     * do not call it in main thread.
+     * @param srcFile
+     * @param destFile
+     * @return true if succeed, false otherwise.
+     */
+    public static boolean copyFileResumable(File srcFile, File destFile) {
+        try {
+            return new ResumableCopier().copy(srcFile, destFile);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * copy a folder with everything in it, see TreeCopier.
+     * do not call it in main thread.
+     * @param srcDir the folder to copy
+     * @param destDir the target, merged into if exists
+     * @param listener progress listener, can be null
+     * @return true if succeed, false otherwise.
+     */
+    public static boolean copyDir(File srcDir, File destDir,
+                                  TreeCopier.ProgressListener listener) {
+        try {
+            return new TreeCopier().setProgressListener(listener).copy(srcDir, destDir);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     /**
      * Copy data from a source stream to destFile.
+     * if the stream is a FileInputStream of a regular file, the data is
+     * copied between the file channels, without passing through java heap.
+     * see copyChannel(). pipes and sockets are copied as streams.
+     * destFile is synced before return.
      * Return true if succeed, return false if failed.
      */
     public static boolean copyToFile(InputStream inputStream, File destFile) {
+        return copyToFile(inputStream, destFile, null);
+    }
+
+    /**
+     * Copy data from a source stream to destFile, see copyToFile() above.
+     * @param group how destFile is synced, and whether it is written to a
+     *              temp file and renamed, see SyncGroup. null to sync it
+     *              before return.
+     * Return true if succeed, return false if failed. a half written
+     * file is deleted, and with an atomic group, destFile is untouched.
+     */
+    public static boolean copyToFile(InputStream inputStream, File destFile,
+                                     SyncGroup group) {
+        if (group == null) {
+            group = sSyncEach;
+        }
+        File file = group.getWriteFile(destFile);
         try {
-            if (destFile.exists()) {
-                destFile.delete();
+            if (file.exists()) {
+                file.delete();
             }
-            FileOutputStream out = new FileOutputStream(destFile);
+            FileOutputStream out = new FileOutputStream(file);
             try {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) >= 0) {
-                    out.write(buffer, 0, bytesRead);
+                FileChannel in = inputStream instanceof FileInputStream ?
+                        ((FileInputStream) inputStream).getChannel() : null;
+                if (in != null && isSeekable(in)) {
+                    copyChannel(in, out.getChannel());
+                } else {
+                    copyStream(inputStream, out);
                 }
-            } finally {
                 out.flush();
-                try {
-                    out.getFD().sync();
-                } catch (IOException e) {
-                }
+                group.onWritten(out.getFD(), file, destFile);
+            } finally {
                 out.close();
             }
             return true;
+        } catch (IOException e) {
+            group.onFailed(file);
+            return false;
+        }
+    }
+
+    // a FileInputStream can also be a pipe or a socket, e.g. from
+    // ContentResolver.openInputStream(), where position() fails with
+    // ESPIPE. nothing is read here, so the stream can still be copied.
+    private static boolean isSeekable(FileChannel channel) {
+        try {
+            channel.position();
+            channel.size();
+            return true;
         } catch (IOException e) {
             return false;
         }
     }
 
+    /**
+     * copy what is left in a stream to another, through a heap buffer.
+     * @return bytes copied
+     */
+    static long copyStream(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long total = 0;
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, bytesRead);
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    /**
+     * copy from the current position of a file channel to its end, to
+     * the current position of another. FileChannel.transferTo() is used,
+     * which lets the kernel move the data without copying it to user
+     * space where it can. if it is not supported for the files (some
+     * fuse / sdcard file systems), the rest is copied through a direct
+     * buffer, see copyChannelBuffered().
+     * @return bytes copied
+     */
+    static long copyChannel(FileChannel in, FileChannel out) throws IOException {
+        long start = in.position();
+        long outStart = out.position();
+        long size = in.size();
+        long pos = start;
+        try {
+            while (pos < size) {
+                long n = in.transferTo(pos, Math.min(TRANSFER_STEP, size - pos), out);
+                if (n <= 0) {
+                    // not supported, or the file was truncated
+                    break;
+                }
+                pos += n;
+            }
+        } catch (IOException e) {
+            // fall through with buffers from where it stopped
+        }
+        in.position(pos);
+        out.position(outStart + (pos - start));
+        // also picks up anything appended to the file meanwhile
+        return pos - start + copyChannelBuffered(in, out);
+    }
+
+    /**
+     * copy from the current position of a file channel to its end,
+     * through a direct buffer that is reused in the calling thread.
+     * @return bytes copied
+     */
+    static long copyChannelBuffered(FileChannel in, FileChannel out) throws IOException {
+        ByteBuffer buffer = sDirectBuffer.get();
+        buffer.clear();
+        long total = 0;
+        while (in.read(buffer) >= 0 || buffer.position() > 0) {
+            buffer.flip();
+            total += out.write(buffer);
+            buffer.compact();
+        }
+        return total;
+    }
+
     /**
      * Read a text file into a String.
      */
@@ -514,6 +714,13 @@ public class FileUtils {
         return readTextFile(file, 0, null);
     }
 
+    /**
+     * Read a text file into a String.
+     */
+    public static String readTextFile(File file, Charset charset) throws IOException {
+        return readTextFile(file, 0, null, charset);
+    }
+
     /**
      * Read a text file into a String, optionally limiting the length.
      * @param file
@@ -527,6 +734,123 @@ public class FileUtils {
      *             if something goes wrong reading the file
      */
     public static String readTextFile(File file, int max, String ellipsis) throws IOException {
+        return readTextFile(file, max, ellipsis, Charset.defaultCharset());
+    }
+
+    /**
+     * Read a text file into a String, optionally limiting the length.
+     * a regular file is read by its size: large files are memory mapped
+     * instead of copied through buffers, and "tail" mode reads only the
+     * last N bytes, so tailing a huge log costs O(N). a character cut by
+     * the limit is dropped (for UTF-8) or replaced.
+     * files without a size, like /proc files, are read as a stream.
+     * @param file
+     *            to read
+     * @param max
+     *            length in bytes (positive for head, negative of tail,
+     *            0 for no limit)
+     * @param ellipsis
+     *            to add if the file was truncated (can be null)
+     * @param charset
+     *            charset of the file
+     * @return the contents of the file, possibly truncated
+     * @throws java.io.IOException
+     *             if something goes wrong reading the file
+     */
+    public static String readTextFile(File file, int max, String ellipsis,
+                                      Charset charset) throws IOException {
+        if (!file.isFile() || file.length() <= 0) {
+            return readTextStream(file, max, ellipsis, charset);
+        }
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            if (max < 0) {
+                // "tail" mode: read the last N bytes only
+                int count = (int) Math.min(size, -(long) max);
+                ByteBuffer data = ByteBuffer.allocate(count);
+                readFully(channel, data, size - count);
+                boolean rolled = count < size;
+                String text = decode(data, charset, rolled, false);
+                return rolled && ellipsis != null ? ellipsis + text : text;
+            }
+            // "head" mode, or the whole file
+            long count = max == 0 ? size : Math.min(size, max);
+            ByteBuffer data;
+            if (count >= MAP_THRESHOLD) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, count);
+            } else {
+                data = ByteBuffer.allocate((int) count);
+                readFully(channel, data, 0);
+            }
+            boolean truncated = count < size;
+            String text = decode(data, charset, false, truncated);
+            return truncated && ellipsis != null ? text + ellipsis : text;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * read a text file line by line, without holding the whole text.
+     * close the iterator if the iteration stops before the end.
+     * @param file the file to read
+     * @param charset charset of the file
+     * @return the iterator
+     * @throws IOException if the file can not be opened
+     */
+    public static LineIterator iterateLines(File file, Charset charset) throws IOException {
+        return new LineIterator(file, charset);
+    }
+
+    // read from position until data is full or the file ends, then flip
+    private static void readFully(FileChannel channel, ByteBuffer data,
+                                  long position) throws IOException {
+        while (data.hasRemaining()) {
+            int n = channel.read(data, position);
+            if (n < 0) {
+                break;
+            }
+            position += n;
+        }
+        data.flip();
+    }
+
+    private static String decode(ByteBuffer data, Charset charset,
+                                 boolean cutAtStart, boolean cutAtEnd) {
+        if (UTF_8.equals(charset)) {
+            int start = data.position();
+            int end = data.limit();
+            if (cutAtStart) {
+                // skip continuation bytes of a character started before
+                for (int i = 0; i < 3 && start < end && (data.get(start) & 0xc0) == 0x80; i++) {
+                    start++;
+                }
+            }
+            if (cutAtEnd) {
+                // drop a character whose bytes are not all here
+                for (int i = end - 1; i >= start && i >= end - 4; i--) {
+                    int b = data.get(i) & 0xff;
+                    if ((b & 0xc0) == 0x80) {
+                        continue;
+                    }
+                    int length = b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : b >= 0xc0 ? 2 : 1;
+                    if (i + length > end) {
+                        end = i;
+                    }
+                    break;
+                }
+            }
+            data.limit(end);
+            data.position(start);
+        }
+        return charset.decode(data).toString();
+    }
+
+    // the old way, for files without a size
+    private static String readTextStream(File file, int max, String ellipsis,
+                                         Charset charset) throws IOException {
         InputStream input = new FileInputStream(file);
         // wrapping a BufferedInputStream around it because when reading /proc
         // with unbuffered
@@ -548,12 +872,12 @@ public class FileUtils {
                     return "";
                 }
                 if (length <= max) {
-                    return new String(data, 0, length);
+                    return new String(data, 0, length, charset);
                 }
                 if (ellipsis == null) {
-                    return new String(data, 0, max);
+                    return new String(data, 0, max, charset);
                 }
-                return new String(data, 0, max) + ellipsis;
+                return new String(data, 0, max, charset) + ellipsis;
             } else if (max < 0) {
                 // "tail" mode: keep the last N
                 int len;
@@ -577,7 +901,7 @@ public class FileUtils {
                     return "";
                 }
                 if (last == null) {
-                    return new String(data, 0, len);
+                    return new String(data, 0, len, charset);
                 }
                 if (len > 0) {
                     rolled = true;
@@ -585,9 +909,9 @@ public class FileUtils {
                     System.arraycopy(data, 0, last, last.length - len, len);
                 }
                 if (ellipsis == null || !rolled) {
-                    return new String(last);
+                    return new String(last, charset);
                 }
-                return ellipsis + new String(last);
+                return ellipsis + new String(last, charset);
             } else {
                 // "cat" mode: size unknown, read it all in streaming
                 // fashion
@@ -600,7 +924,7 @@ public class FileUtils {
                         contents.write(data, 0, len);
                     }
                 } while (len == data.length);
-                return contents.toString();
+                return contents.toString(charset.name());
             }
         } finally {
             bis.close();
@@ -0,0 +1,182 @@
+package com.lx.mystalecode.utils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * author: liuxu
+ * date: 2016-03-07
+ *
+ * walk through files and folders under a folder lazily.
+ *
+ * files are returned depth first, a folder is always returned before
+ * its children. a folder is listed only when the walk goes into it,
+ * and only the folders on the current path are held, so memory is
+ * O(depth) and the first file is available right away.
+ *
+ * depth and filter have the same meaning as in FileUtils.getSubFiles():
+ * depth 0 or negative means no limit, and filter is applied to every
+ * listed file; a folder rejected by the filter is not walked into.
+ *
+ * use it as an Iterator, call skipSubtree() to avoid walking into the
+ * folder just returned by next(); or use walk() with a Visitor.
+ *
+ * see FileUtils.iterateSubFiles() and FileUtils.walkSubFiles().
+ */
+public class FileWalker implements Iterator<File> {
+
+    public enum VisitResult {
+        /** go on walking, into the folder if it is a folder */
+        CONTINUE,
+        /** go on walking, but not into the folder just visited */
+        SKIP_SUBTREE,
+        /** stop walking */
+        TERMINATE
+    }
+
+    public interface Visitor {
+
+        /**
+         * called for every file and folder walked through.
+         * @param file the file or folder
+         * @param depth depth of the file, the walked folder itself is 0
+         * @return what to do next
+         */
+        public VisitResult visit(File file, int depth);
+    }
+
+    private final FileFilter mFilter;
+    private final int mMaxDepth;
+    private final Deque<Level> mStack = new ArrayDeque<Level>();
+
+    private File mNext;
+    private int mNextDepth;
+    private File mLast;
+    private int mLastDepth;
+    // the folder returned by next(), to be listed on the next advance
+    private File mPendingDir;
+
+    /**
+     * @param folder the folder to walk through
+     * @param filter filter for files, can be null
+     * @param depth depth limit, 0 and negative means no limit
+     * @param includeSelf whether the folder itself is returned first
+     * @throws IllegalArgumentException if folder does not exist
+     */
+    public FileWalker(File folder, FileFilter filter,
+                      int depth, boolean includeSelf) throws IllegalArgumentException {
+        if (!folder.exists()) {
+            throw new IllegalArgumentException("not a valid folder: " + folder);
+        }
+        mFilter = filter;
+        // consider 0 and negative number as no limit.
+        mMaxDepth = depth <= 0 ? Integer.MAX_VALUE : depth;
+        if (includeSelf) {
+            mNext = folder;
+            mNextDepth = 0;
+        } else {
+            pushChildren(folder, 0);
+        }
+    }
+
+    /**
+     * walk through the folder with a visitor.
+     * @param visitor the visitor
+     * @return false if the walk is terminated by visitor, true otherwise
+     */
+    public boolean walk(Visitor visitor) {
+        while (hasNext()) {
+            File file = next();
+            VisitResult result = visitor.visit(file, mLastDepth);
+            if (result == VisitResult.TERMINATE) {
+                return false;
+            } else if (result == VisitResult.SKIP_SUBTREE) {
+                skipSubtree();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mNext != null) {
+            return true;
+        }
+        if (mPendingDir != null) {
+            File dir = mPendingDir;
+            mPendingDir = null;
+            pushChildren(dir, mLastDepth);
+        }
+        while (!mStack.isEmpty()) {
+            Level level = mStack.peek();
+            if (level.index >= level.files.length) {
+                mStack.pop();
+                continue;
+            }
+            mNext = level.files[level.index];
+            mNextDepth = level.depth;
+            // release the reference, the caller keeps it if needed
+            level.files[level.index++] = null;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        mLast = mNext;
+        mLastDepth = mNextDepth;
+        mNext = null;
+        mPendingDir = mLast;
+        return mLast;
+    }
+
+    /**
+     * do not walk into the folder just returned by next().
+     */
+    public void skipSubtree() {
+        mPendingDir = null;
+    }
+
+    /**
+     * @return depth of the file just returned by next()
+     */
+    public int getDepth() {
+        return mLastDepth;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    private void pushChildren(File dir, int depth) {
+        if (depth >= mMaxDepth) {
+            // folder depth reaches the limit, do not go deeper
+            return;
+        }
+        // listFiles() returns null for files, no extra isDirectory() needed
+        File[] files = dir.listFiles(mFilter);
+        if (files != null && files.length > 0) {
+            mStack.push(new Level(files, depth + 1));
+        }
+    }
+
+    private static class Level {
+        final File[] files;
+        final int depth;
+        int index;
+
+        Level(File[] files, int depth) {
+            this.files = files;
+            this.depth = depth;
+        }
+    }
+}
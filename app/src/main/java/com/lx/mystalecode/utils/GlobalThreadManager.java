@@ -1,13 +1,20 @@
 package com.lx.mystalecode.utils;
 
+import android.annotation.TargetApi;
+import android.app.Activity;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -18,16 +25,36 @@ import java.util.concurrent.atomic.AtomicInteger;
  * date: 2014-11-25
  *
  * to easy access thread pool.
+ *
+ * besides the general thread pool there are two pools for heavy jobs:
+ * the compute pool, sized to cpu cores, for cpu bound work like hashing
+ * and compressing, and the io pool, which grows on demand, for blocking
+ * file operations. so a slow disk never holds the threads that compute.
+ *
+ * pools are created on demand, and created again if used after
+ * shutdownThreadPool(). call onTrimMemory() from Application to let
+ * idle threads quit under memory pressure or in background; they are
+ * kept again when an activity is started, see init().
  */
 public final class GlobalThreadManager {
 
+    public static final String TAG = GlobalThreadManager.class.getSimpleName();
+
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
     private static final int CORE_POOL_SIZE = CPU_COUNT + 1;
     private static final int MAXIMUM_POOL_SIZE = CPU_COUNT * 2 + 1;
     private static final int KEEP_ALIVE = 2;
+    private static final int QUEUE_CAPACITY = 128;
+    private static final int SINGLE_THREAD_CAP = 32;
+    private static final int SINGLE_THREAD_IDLE = 30; // seconds
+    private static final long QUIESCENCE_POLL_INTERVAL = 10; // ms
+    private static final int IO_POOL_CAP = Math.max(8, CPU_COUNT * 4);
+    private static final int IO_POOL_IDLE = 10; // seconds
 
-    private static final BlockingQueue<Runnable> sPoolWorkQueue =
-            new LinkedBlockingQueue<Runnable>(128);
+    /** see PriorityThreadPool */
+    public static final int PRIORITY_UI_CRITICAL = PriorityThreadPool.PRIORITY_UI_CRITICAL;
+    public static final int PRIORITY_NORMAL = PriorityThreadPool.PRIORITY_NORMAL;
+    public static final int PRIORITY_BACKGROUND = PriorityThreadPool.PRIORITY_BACKGROUND;
 
     private static final ThreadFactory sThreadFactory = new ThreadFactory() {
         private final AtomicInteger mCount = new AtomicInteger(1);
@@ -38,31 +65,184 @@ public final class GlobalThreadManager {
     };
 
     private static Application sApp;
-    private static ExecutorService mThreadPoolSingleThread =
-            Executors.newSingleThreadExecutor();
-    private static ThreadPoolExecutor mThreadPool;
+    private static volatile PriorityThreadPool mThreadPoolSingleThread;
+    private static volatile ElasticThreadPool sSingleThreadPool;
+    private static volatile ExecutorService sComputePool;
+    private static volatile ElasticThreadPool sIoPool;
+    private static int sSingleThreadPriority = Process.THREAD_PRIORITY_DEFAULT;
+    private static final DelayScheduler sDelayScheduler =
+            new DelayScheduler("GlobalThreadManager-timer", PRIORITY_NORMAL);
+    private static final KeyedSerialExecutor sKeyedSerialExecutor = new KeyedSerialExecutor();
+    private static long sLongTaskThreshold;
+    private static volatile PriorityThreadPool mThreadPool;
+    private static boolean sTrimmed;
+    // activities started and not stopped, main thread only
+    private static int sStartedActivities;
+    private static PriorityThreadPool.OverflowPolicy sOverflowPolicy =
+            PriorityThreadPool.OverflowPolicy.SPILL;
     private static Handler mUiThreadHandler;
+    private static UiBatchDispatcher sUiBatchDispatcher;
+    private static MainThreadWatchdog sMainThreadWatchdog;
 
     private GlobalThreadManager() {}
 
+    /**
+     * @param app the application. its activities are tracked to know when
+     *            the app comes to foreground, see onTrimMemory().
+     */
     public static void init(Application app) {
+        if (sApp == null) {
+            app.registerActivityLifecycleCallbacks(sLifecycleCallbacks);
+        }
         sApp = app;
     }
 
-    private static ThreadPoolExecutor getThreadPoolInstance() {
+    private static final Application.ActivityLifecycleCallbacks sLifecycleCallbacks =
+            new Application.ActivityLifecycleCallbacks() {
+        @Override
+        public void onActivityStarted(Activity activity) {
+            if (sStartedActivities++ == 0) {
+                onAppForeground();
+            }
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            sStartedActivities = Math.max(0, sStartedActivities - 1);
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    };
+
+    private static PriorityThreadPool getThreadPoolInstance() {
         if (mThreadPool == null) {
             synchronized (GlobalThreadManager.class) {
                 if (mThreadPool == null) {
-                    mThreadPool = new ThreadPoolExecutor(
+                    mThreadPool = new PriorityThreadPool(
                             CORE_POOL_SIZE, MAXIMUM_POOL_SIZE,
-                            KEEP_ALIVE, TimeUnit.SECONDS,
-                            sPoolWorkQueue, sThreadFactory);
+                            KEEP_ALIVE, QUEUE_CAPACITY,
+                            sThreadFactory, sOverflowPolicy);
+                    mThreadPool.allowCoreThreadTimeOut(sTrimmed);
                 }
             }
         }
         return mThreadPool;
     }
 
+    private static PriorityThreadPool getSequentialThreadPoolInstance() {
+        if (mThreadPoolSingleThread == null) {
+            synchronized (GlobalThreadManager.class) {
+                if (mThreadPoolSingleThread == null) {
+                    mThreadPoolSingleThread = new PriorityThreadPool(
+                            1, 1, KEEP_ALIVE, Integer.MAX_VALUE, new ThreadFactory() {
+                                public Thread newThread(Runnable r) {
+                                    return new Thread(r, "GlobalThreadManager-sequential");
+                                }
+                            }, PriorityThreadPool.OverflowPolicy.SPILL);
+                    mThreadPoolSingleThread.allowCoreThreadTimeOut(sTrimmed);
+                }
+            }
+        }
+        return mThreadPoolSingleThread;
+    }
+
+    private static ElasticThreadPool getSingleThreadPoolInstance() {
+        if (sSingleThreadPool == null) {
+            synchronized (GlobalThreadManager.class) {
+                if (sSingleThreadPool == null) {
+                    sSingleThreadPool = new ElasticThreadPool("GlobalThreadManager-single",
+                            sSingleThreadPriority, SINGLE_THREAD_CAP, SINGLE_THREAD_IDLE);
+                }
+            }
+        }
+        return sSingleThreadPool;
+    }
+
+    private static ExecutorService getComputePoolInstance() {
+        if (sComputePool == null) {
+            synchronized (GlobalThreadManager.class) {
+                if (sComputePool == null) {
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                        sComputePool = newForkJoinPool();
+                    } else {
+                        // no ForkJoinPool before API 21
+                        sComputePool = new PriorityThreadPool(
+                                CPU_COUNT, CPU_COUNT, KEEP_ALIVE, Integer.MAX_VALUE,
+                                new ThreadFactory() {
+                                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                                    public Thread newThread(Runnable r) {
+                                        return new Thread(r, "GlobalThreadManager-compute#"
+                                                + mCount.getAndIncrement());
+                                    }
+                                }, PriorityThreadPool.OverflowPolicy.SPILL);
+                    }
+                }
+            }
+        }
+        return sComputePool;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static ExecutorService newForkJoinPool() {
+        // asyncMode: tasks never joined are taken in FIFO order
+        return new ForkJoinPool(CPU_COUNT, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+                        .newThread(pool);
+                t.setName("GlobalThreadManager-compute#" + mCount.getAndIncrement());
+                return t;
+            }
+        }, null, true);
+    }
+
+    private static ElasticThreadPool getIoPoolInstance() {
+        if (sIoPool == null) {
+            synchronized (GlobalThreadManager.class) {
+                if (sIoPool == null) {
+                    sIoPool = new ElasticThreadPool("GlobalThreadManager-io",
+                            Process.THREAD_PRIORITY_BACKGROUND, IO_POOL_CAP, IO_POOL_IDLE);
+                }
+            }
+        }
+        return sIoPool;
+    }
+
+    /**
+     * what to do when more than 128 tasks are queued in the thread pool.
+     * default is SPILL, which queues them anyway.
+     * @param policy see PriorityThreadPool.OverflowPolicy
+     */
+    public static void setOverflowPolicy(PriorityThreadPool.OverflowPolicy policy) {
+        synchronized (GlobalThreadManager.class) {
+            sOverflowPolicy = policy;
+            if (mThreadPool != null) {
+                mThreadPool.setOverflowPolicy(policy);
+            }
+        }
+    }
+
     private static Handler getUiThreadHandler() {
         if (mUiThreadHandler == null) {
             synchronized (GlobalThreadManager.class) {
@@ -74,13 +254,45 @@ public final class GlobalThreadManager {
         return mUiThreadHandler;
     }
 
+    private static UiBatchDispatcher getUiBatchDispatcher() {
+        if (sUiBatchDispatcher == null) {
+            synchronized (GlobalThreadManager.class) {
+                if (sUiBatchDispatcher == null) {
+                    sUiBatchDispatcher = new UiBatchDispatcher(getUiThreadHandler());
+                }
+            }
+        }
+        return sUiBatchDispatcher;
+    }
+
     /**
      * do something in this thread pool.
      * Tasks will run in parallel.
      * @param runnable can be an AsyncTask
      */
     public static void runInThreadPool(Runnable runnable) {
-        getThreadPoolInstance().execute(runnable);
+        getThreadPoolInstance().execute(runnable, PRIORITY_NORMAL);
+    }
+
+    /**
+     * do something in this thread pool, with a priority.
+     * queued tasks of higher priority are taken first.
+     * @param runnable can be an AsyncTask
+     * @param priority PRIORITY_UI_CRITICAL, PRIORITY_NORMAL or PRIORITY_BACKGROUND
+     */
+    public static void runInThreadPool(Runnable runnable, int priority) {
+        getThreadPoolInstance().execute(runnable, priority);
+    }
+
+    /**
+     * same as runInThreadPool(Runnable, int), with a tag to cancel it
+     * by, see cancelByTag().
+     * @param runnable can be an AsyncTask
+     * @param priority PRIORITY_UI_CRITICAL, PRIORITY_NORMAL or PRIORITY_BACKGROUND
+     * @param tag the tag, compared with equals()
+     */
+    public static void runInThreadPool(Runnable runnable, int priority, Object tag) {
+        getThreadPoolInstance().execute(runnable, priority, tag);
     }
 
     /**
@@ -89,15 +301,219 @@ public final class GlobalThreadManager {
      * @param runnable can be an AsyncTask
      */
     public static void runInSequentialThreadPool(Runnable runnable) {
-        mThreadPoolSingleThread.execute(runnable);
+        getSequentialThreadPoolInstance().execute(runnable);
+    }
+
+    /**
+     * do cpu bound work, like hashing, compressing or sorting, in the
+     * compute pool. it has one thread per cpu core, a ForkJoinPool on
+     * API 21 and above. do not block on I/O or locks in it.
+     * @param runnable the task
+     */
+    public static void runInComputePool(Runnable runnable) {
+        getComputePoolInstance().execute(runnable);
+    }
+
+    /**
+     * same as runInComputePool(), returns a future of the task.
+     * @param callable the task
+     * @return future of the task
+     */
+    public static <V> TaskFuture<V> submitCompute(Callable<V> callable) {
+        TaskFuture<V> future = new TaskFuture<V>(callable);
+        getComputePoolInstance().execute(future);
+        return future;
+    }
+
+    /**
+     * do blocking I/O, like listing or copying files, in the io pool.
+     * it starts a thread for a task when no thread is idle, up to
+     * max(8, cpu cores * 4) threads. see ElasticThreadPool.
+     * @param runnable the task
+     */
+    public static void runInIoPool(Runnable runnable) {
+        getIoPoolInstance().execute(runnable);
+    }
+
+    /**
+     * same as runInIoPool(), returns a future of the task.
+     * @param callable the task
+     * @return future of the task
+     */
+    public static <V> TaskFuture<V> submitIo(Callable<V> callable) {
+        TaskFuture<V> future = new TaskFuture<V>(callable);
+        getIoPoolInstance().execute(future);
+        return future;
+    }
+
+    /**
+     * do something in this thread pool, after a delay. no thread waits
+     * for the delay, see DelayScheduler.
+     * @param runnable the task
+     * @param delay delay time, in millisecond
+     * @return the timeout, to cancel the task
+     */
+    public static DelayScheduler.Timeout runInThreadPoolDelayed(Runnable runnable, long delay) {
+        return sDelayScheduler.schedule(runnable, delay);
     }
 
     /**
-     * do something in a new single thread
+     * do something in this thread pool periodically, at a fixed rate.
+     * @param runnable the task
+     * @param initialDelay delay of the first run, in millisecond
+     * @param period period between starts of runs, in millisecond
+     * @return the timeout, to cancel the task
+     */
+    public static DelayScheduler.Timeout runInThreadPoolAtFixedRate(
+            Runnable runnable, long initialDelay, long period) {
+        return sDelayScheduler.scheduleAtFixedRate(runnable, initialDelay, period);
+    }
+
+    /**
+     * do something in this thread pool periodically, with a fixed delay
+     * between the end of a run and the start of the next.
+     * @param runnable the task
+     * @param initialDelay delay of the first run, in millisecond
+     * @param delay delay between runs, in millisecond
+     * @return the timeout, to cancel the task
+     */
+    public static DelayScheduler.Timeout runInThreadPoolWithFixedDelay(
+            Runnable runnable, long initialDelay, long delay) {
+        return sDelayScheduler.scheduleWithFixedDelay(runnable, initialDelay, delay);
+    }
+
+    /**
+     * do something in this thread pool, after all tasks queued with the
+     * same key. tasks with different keys run in parallel.
+     * see KeyedSerialExecutor.
+     * @param key the key, like a file path
+     * @param runnable can be an AsyncTask
+     */
+    public static void runInSerial(Object key, Runnable runnable) {
+        sKeyedSerialExecutor.execute(key, runnable, PRIORITY_NORMAL);
+    }
+
+    /**
+     * same as runInSerial(Object, Runnable), with a priority.
+     * @param key the key
+     * @param runnable can be an AsyncTask
+     * @param priority PRIORITY_UI_CRITICAL, PRIORITY_NORMAL or PRIORITY_BACKGROUND
+     */
+    public static void runInSerial(Object key, Runnable runnable, int priority) {
+        sKeyedSerialExecutor.execute(key, runnable, priority);
+    }
+
+    /**
+     * do something in a thread of its own. it starts at once, in an
+     * idle thread if any, or in a new one. threads are reused, and at
+     * most 32 are alive; when all of them are busy the task waits for
+     * one. see ElasticThreadPool.
      * @param runnable can be an AsyncTask
      */
     public static void runInSingleThread(Runnable runnable) {
-        new Thread(runnable).start();
+        getSingleThreadPoolInstance().execute(runnable);
+    }
+
+    /**
+     * set the android thread priority of tasks run by runInSingleThread().
+     * default is Process.THREAD_PRIORITY_DEFAULT.
+     * @param threadPriority like Process.THREAD_PRIORITY_BACKGROUND
+     */
+    public static void setSingleThreadPriority(int threadPriority) {
+        synchronized (GlobalThreadManager.class) {
+            sSingleThreadPriority = threadPriority;
+            if (sSingleThreadPool != null) {
+                sSingleThreadPool.setThreadPriority(threadPriority);
+            }
+        }
+    }
+
+    /**
+     * @return threads of runInSingleThread(), for live thread count,
+     *         creation rate and so on
+     */
+    public static ElasticThreadPool getSingleThreadPool() {
+        return getSingleThreadPoolInstance();
+    }
+
+    /**
+     * do something in this thread pool, and get its result later.
+     * see TaskFuture for callbacks, chaining and cancellation.
+     * @param callable the task
+     * @return future of the task
+     */
+    public static <V> TaskFuture<V> submit(Callable<V> callable) {
+        return submit(callable, PRIORITY_NORMAL);
+    }
+
+    /**
+     * same as submit(Callable), with a priority.
+     * @param callable the task
+     * @param priority PRIORITY_UI_CRITICAL, PRIORITY_NORMAL or PRIORITY_BACKGROUND
+     * @return future of the task
+     */
+    public static <V> TaskFuture<V> submit(Callable<V> callable, int priority) {
+        return submit(callable, priority, null);
+    }
+
+    /**
+     * same as submit(Callable, int), with a tag to cancel it by, see
+     * cancelByTag().
+     * @param callable the task
+     * @param priority PRIORITY_UI_CRITICAL, PRIORITY_NORMAL or PRIORITY_BACKGROUND
+     * @param tag the tag, compared with equals()
+     * @return future of the task
+     */
+    public static <V> TaskFuture<V> submit(Callable<V> callable, int priority, Object tag) {
+        TaskFuture<V> future = new TaskFuture<V>(callable);
+        getThreadPoolInstance().execute(future, priority, tag);
+        return future;
+    }
+
+    /**
+     * cancel tasks of the thread pool with the tag. queued tasks are
+     * removed, futures are cancelled, running tasks that are not
+     * futures go on.
+     * @param tag the tag given to runInThreadPool() or submit()
+     * @return number of tasks removed from the queue
+     */
+    public static int cancelByTag(Object tag) {
+        PriorityThreadPool pool = mThreadPool;
+        return pool == null ? 0 : pool.cancelByTag(tag);
+    }
+
+    /**
+     * same as runInSequentialThreadPool(), returns a future of the task.
+     * @param callable the task
+     * @return future of the task
+     */
+    public static <V> TaskFuture<V> submitSequential(Callable<V> callable) {
+        TaskFuture<V> future = new TaskFuture<V>(callable);
+        getSequentialThreadPoolInstance().execute(future);
+        return future;
+    }
+
+    /**
+     * same as runInSerial(), returns a future of the task.
+     * @param key the key
+     * @param callable the task
+     * @return future of the task
+     */
+    public static <V> TaskFuture<V> submitSerial(Object key, Callable<V> callable) {
+        TaskFuture<V> future = new TaskFuture<V>(callable);
+        sKeyedSerialExecutor.execute(key, future, PRIORITY_NORMAL);
+        return future;
+    }
+
+    /**
+     * same as runInSingleThread(), returns a future of the task.
+     * @param callable the task
+     * @return future of the task
+     */
+    public static <V> TaskFuture<V> submitInSingleThread(Callable<V> callable) {
+        TaskFuture<V> future = new TaskFuture<V>(callable);
+        getSingleThreadPoolInstance().execute(future);
+        return future;
     }
 
     /**
@@ -129,6 +545,140 @@ public final class GlobalThreadManager {
         handler.postDelayed(runnable, bufferTime);
     }
 
+    /**
+     * do something in ui thread, at the start of next frame. only the
+     * latest runnable of a key is run, so this can be called for every
+     * progress update of a job without flooding the ui thread.
+     * see UiBatchDispatcher.
+     * @param key the key, like the job or the view to update
+     * @param runnable
+     */
+    public static void runInUiThreadBatched(Object key, Runnable runnable) {
+        getUiBatchDispatcher().post(key, runnable);
+    }
+
+    /**
+     * drop the pending runnable of the key, see runInUiThreadBatched().
+     * @param key the key
+     */
+    public static void cancelUiThreadBatched(Object key) {
+        getUiBatchDispatcher().cancel(key);
+    }
+
+    /**
+     * set max time a frame spends on runInUiThreadBatched() work,
+     * default is 8ms. the rest is left to next frame.
+     * @param millis time budget, in millisecond
+     */
+    public static void setUiFrameBudget(long millis) {
+        getUiBatchDispatcher().setFrameBudget(millis);
+    }
+
+
+    /**
+     * @return a snapshot of counters and timings of the thread pool,
+     *         see PriorityThreadPool.Stats
+     */
+    public static PriorityThreadPool.Stats getThreadPoolStats() {
+        return getThreadPoolInstance().getStats();
+    }
+
+    /**
+     * @return a snapshot of counters and timings of the sequential
+     *         thread pool
+     */
+    public static PriorityThreadPool.Stats getSequentialThreadPoolStats() {
+        return getSequentialThreadPoolInstance().getStats();
+    }
+
+    /**
+     * print stats of all thread pools to logcat.
+     */
+    public static void logStats() {
+        Log.i(TAG, "thread pool:\n" + getThreadPoolStats());
+        Log.i(TAG, "sequential thread pool:\n" + getSequentialThreadPoolStats());
+        Log.i(TAG, getSingleThreadPoolInstance().toString());
+        Log.i(TAG, getIoPoolInstance().toString());
+        Log.i(TAG, "compute pool: " + getComputePoolInstance());
+    }
+
+    /**
+     * log a warning, with its stack, for every task that runs longer
+     * than the threshold in either thread pool.
+     * checked in ui thread every threshold / 2.
+     * @param thresholdMillis threshold, 0 to turn it off
+     */
+    public static void setLongTaskWatchdog(long thresholdMillis) {
+        Handler handler = getUiThreadHandler();
+        handler.removeCallbacks(sLongTaskChecker);
+        sLongTaskThreshold = thresholdMillis;
+        if (thresholdMillis > 0) {
+            handler.postDelayed(sLongTaskChecker, Math.max(1, thresholdMillis / 2));
+        }
+    }
+
+    private static final Runnable sLongTaskChecker = new Runnable() {
+        @Override
+        public void run() {
+            long threshold = sLongTaskThreshold;
+            if (threshold <= 0) {
+                return;
+            }
+            PriorityThreadPool pool = mThreadPool;
+            if (pool != null) {
+                reportLongTasks(pool, threshold);
+            }
+            pool = mThreadPoolSingleThread;
+            if (pool != null) {
+                reportLongTasks(pool, threshold);
+            }
+            getUiThreadHandler().postDelayed(this, Math.max(1, threshold / 2));
+        }
+    };
+
+    private static void reportLongTasks(PriorityThreadPool pool, long threshold) {
+        for (PriorityThreadPool.RunningTask task : pool.findLongRunningTasks(threshold)) {
+            Throwable stack = new Throwable("stack of " + task.thread.getName());
+            stack.setStackTrace(task.thread.getStackTrace());
+            Log.w(TAG, "long running task: " + task, stack);
+        }
+    }
+
+    /**
+     * start watching for messages that block the main thread longer
+     * than the threshold. see MainThreadWatchdog.
+     * @param thresholdMillis threshold, in millisecond
+     * @return the watchdog, to get the worst offenders from
+     */
+    public static MainThreadWatchdog startMainThreadWatchdog(long thresholdMillis) {
+        synchronized (GlobalThreadManager.class) {
+            if (sMainThreadWatchdog != null) {
+                sMainThreadWatchdog.release();
+            }
+            sMainThreadWatchdog = new MainThreadWatchdog(thresholdMillis);
+            sMainThreadWatchdog.start();
+            return sMainThreadWatchdog;
+        }
+    }
+
+    /**
+     * stop the main thread watchdog, if started.
+     */
+    public static void stopMainThreadWatchdog() {
+        synchronized (GlobalThreadManager.class) {
+            if (sMainThreadWatchdog != null) {
+                sMainThreadWatchdog.release();
+                sMainThreadWatchdog = null;
+            }
+        }
+    }
+
+    /**
+     * @return the main thread watchdog, or null if not started
+     */
+    public static MainThreadWatchdog getMainThreadWatchdog() {
+        return sMainThreadWatchdog;
+    }
 
     /**
      * check if the current calling thread is running in main thread.
@@ -154,19 +704,140 @@ public final class GlobalThreadManager {
      * @param msg message for exception
      */
     public static void throwExceptionIfNotInMainThread(String msg) {
-        if (isInMainThread()) {
+        if (!isInMainThread()) {
             throw new IllegalThreadStateException(msg);
         }
     }
 
+    /**
+     * wait until every thread pool is idle: nothing queued or running.
+     * tasks scheduled with a delay are not waited for.
+     * must not be called in main thread.
+     * @param timeoutMillis max time to wait, in millisecond
+     * @return true if idle, false on timeout
+     * @throws InterruptedException
+     */
+    public static boolean awaitQuiescence(long timeoutMillis) throws InterruptedException {
+        throwExceptionIfInMainThread("awaitQuiescence() in main thread");
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!isQuiescent()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(QUIESCENCE_POLL_INTERVAL);
+        }
+        return true;
+    }
+
+    private static boolean isQuiescent() {
+        return isIdle(mThreadPool) && isIdle(mThreadPoolSingleThread)
+                && isIdle(sSingleThreadPool) && isIdle(sIoPool) && isIdle(sComputePool)
+                && sKeyedSerialExecutor.getKeyCount() == 0;
+    }
+
+    private static boolean isIdle(ExecutorService pool) {
+        if (pool == null) {
+            return true;
+        }
+        if (pool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+            return executor.getQueue().isEmpty() && executor.getActiveCount() == 0;
+        }
+        return isForkJoinPoolIdle(pool);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean isForkJoinPoolIdle(ExecutorService pool) {
+        return ((ForkJoinPool) pool).isQuiescent();
+    }
+
+    /**
+     * let idle threads quit when memory is low (TRIM_MEMORY_RUNNING_LOW or
+     * worse) or the app is in background (TRIM_MEMORY_UI_HIDDEN or worse).
+     * they are kept again by onAppForeground(). call it from
+     * Application.onTrimMemory().
+     * @param level level of ComponentCallbacks2.onTrimMemory()
+     */
+    public static void onTrimMemory(int level) {
+        // TRIM_MEMORY_RUNNING_MODERATE is not worth losing warm threads
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            setTrimmed(true);
+        }
+    }
+
+    /**
+     * keep idle threads again after onTrimMemory(). it is called when the
+     * first activity is started if init() was called, otherwise call it
+     * when the app comes to foreground.
+     */
+    public static void onAppForeground() {
+        setTrimmed(false);
+    }
+
+    private static void setTrimmed(boolean trim) {
+        synchronized (GlobalThreadManager.class) {
+            if (trim == sTrimmed) {
+                return;
+            }
+            sTrimmed = trim;
+            // threads of runInSingleThread() quit when idle anyway
+            if (mThreadPool != null) {
+                mThreadPool.allowCoreThreadTimeOut(trim);
+            }
+            if (mThreadPoolSingleThread != null) {
+                mThreadPoolSingleThread.allowCoreThreadTimeOut(trim);
+            }
+        }
+    }
+
+    /**
+     * shutdown all thread pools. queued tasks still run, delayed tasks
+     * are cancelled. pools are created again if used later.
+     */
     public static void shutdownThreadPool() {
-        if (mThreadPool != null) {
-            mThreadPool.shutdown();
+        shutdownThreadPool(0);
+    }
+
+    /**
+     * same as shutdownThreadPool(), and wait for queued and running
+     * tasks to finish.
+     * @param timeoutMillis max time to wait, in millisecond. 0 for not
+     *                      waiting at all
+     * @return true if all tasks finished
+     */
+    public static boolean shutdownThreadPool(long timeoutMillis) {
+        ExecutorService[] pools;
+        synchronized (GlobalThreadManager.class) {
+            pools = new ExecutorService[] { mThreadPool, mThreadPoolSingleThread,
+                    sSingleThreadPool, sComputePool, sIoPool };
             mThreadPool = null;
-        }
-        if (mThreadPoolSingleThread != null) {
-            mThreadPoolSingleThread.shutdown();
             mThreadPoolSingleThread = null;
+            sSingleThreadPool = null;
+            sComputePool = null;
+            sIoPool = null;
+        }
+        sDelayScheduler.cancelAll();
+        for (ExecutorService pool : pools) {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        if (timeoutMillis <= 0) {
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            for (ExecutorService pool : pools) {
+                if (pool != null && !pool.awaitTermination(
+                        Math.max(0, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
+        return true;
     }
 }
@@ -0,0 +1,174 @@
+package com.lx.mystalecode.utils;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * author: liuxu
+ * date: 2016-03-28
+ *
+ * run tasks in order per key, on GlobalThreadManager's thread pool.
+ *
+ * tasks with the same key run one after another, in the order they are
+ * queued. tasks with different keys run in parallel. no thread is kept
+ * per key: a key holds a pool thread only while it has tasks, and it
+ * gives the thread back every few tasks so that a busy key does not
+ * starve the others. a key is removed as soon as its queue is empty,
+ * so keys can be anything, like file paths, without leaking memory.
+ *
+ * keys are compared with equals().
+ *
+ * if the pool refuses the runner of a key (it was shut down in the
+ * meantime), it is retried once in the new pool. if that fails too, all
+ * tasks of the key are failed: futures are cancelled, and it is logged.
+ *
+ * see GlobalThreadManager.runInSerial().
+ */
+public class KeyedSerialExecutor {
+
+    public static final String TAG = KeyedSerialExecutor.class.getSimpleName();
+
+    // tasks run in one go before the thread is given back to the pool
+    private static final int BATCH_SIZE = 8;
+
+    // guarded by itself
+    private final Map<Object, SerialQueue> mQueues = new HashMap<Object, SerialQueue>();
+
+    /**
+     * run a task after all tasks queued with the same key.
+     * @param key the key
+     * @param runnable the task
+     * @param priority priority in the thread pool, see PriorityThreadPool
+     */
+    public void execute(Object key, Runnable runnable, int priority) {
+        if (key == null || runnable == null) {
+            throw new NullPointerException();
+        }
+        SerialQueue queue;
+        synchronized (mQueues) {
+            queue = mQueues.get(key);
+            if (queue == null) {
+                queue = new SerialQueue(key);
+                mQueues.put(key, queue);
+            }
+            queue.tasks.add(new Task(runnable, priority));
+            if (queue.scheduled) {
+                return;
+            }
+            queue.scheduled = true;
+        }
+        queue.schedule(priority, true);
+    }
+
+    /**
+     * @return number of keys having tasks queued or running
+     */
+    public int getKeyCount() {
+        synchronized (mQueues) {
+            return mQueues.size();
+        }
+    }
+
+    /**
+     * @return number of tasks queued under the key, not including the
+     *         running one
+     */
+    public int getQueuedCount(Object key) {
+        synchronized (mQueues) {
+            SerialQueue queue = mQueues.get(key);
+            return queue == null ? 0 : queue.tasks.size();
+        }
+    }
+
+    private static class Task {
+        final Runnable runnable;
+        final int priority;
+
+        Task(Runnable runnable, int priority) {
+            this.runnable = runnable;
+            this.priority = priority;
+        }
+    }
+
+    // tasks of one key. it is in the thread pool, or about to be, while
+    // scheduled is true. both fields are guarded by mQueues
+    private class SerialQueue implements Runnable {
+        final Object key;
+        final ArrayDeque<Task> tasks = new ArrayDeque<Task>(2);
+        boolean scheduled;
+
+        SerialQueue(Object key) {
+            this.key = key;
+        }
+
+        // rethrow: whether the caller should see a failure, false when
+        // called in a pool thread
+        void schedule(int priority, boolean rethrow) {
+            RuntimeException error = null;
+            for (int i = 0; i < 2; i++) {
+                try {
+                    // a pool shut down is replaced by a new one, retry once
+                    GlobalThreadManager.runInThreadPool(this, priority);
+                    return;
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+            }
+            Task[] failed;
+            synchronized (mQueues) {
+                failed = tasks.toArray(new Task[tasks.size()]);
+                tasks.clear();
+                scheduled = false;
+                if (mQueues.get(key) == this) {
+                    mQueues.remove(key);
+                }
+            }
+            Log.e(TAG, "failed to schedule " + failed.length + " tasks of " + key, error);
+            for (Task task : failed) {
+                if (task.runnable instanceof Future) {
+                    ((Future<?>) task.runnable).cancel(false);
+                }
+            }
+            if (rethrow) {
+                throw error;
+            }
+        }
+
+        @Override
+        public void run() {
+            Task next = null;
+            try {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    Task task;
+                    synchronized (mQueues) {
+                        task = tasks.poll();
+                        if (task == null) {
+                            scheduled = false;
+                            mQueues.remove(key);
+                            return;
+                        }
+                    }
+                    task.runnable.run();
+                }
+            } finally {
+                synchronized (mQueues) {
+                    if (scheduled) {
+                        // batch is done, or a task threw
+                        next = tasks.peek();
+                        if (next == null) {
+                            scheduled = false;
+                            mQueues.remove(key);
+                        }
+                    }
+                }
+                if (next != null) {
+                    schedule(next.priority, false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.lx.mystalecode.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * author: liuxu
+ * date: 2016-03-25
+ *
+ * a lock free histogram of durations, in milliseconds.
+ *
+ * bucket i counts durations in [2^(i-1), 2^i) ms, bucket 0 is below
+ * 1 ms and the last one takes everything longer. percentiles are
+ * estimated as the upper bound of their bucket, which is precise
+ * enough to tell 5 ms from 500 ms.
+ *
+ * used by PriorityThreadPool.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 20; // up to about 4 min
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        mBuckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+        mCount.incrementAndGet();
+        mSum.addAndGet(millis);
+        long max;
+        while (millis > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, millis)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getAverage() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * @param percent 0 to 100
+     * @return estimated duration under which the given percent of
+     *         records are, in milliseconds
+     */
+    public long getPercentile(int percent) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = (count * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= target) {
+                return Math.min(1L << i, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " avg=" + getAverage() + "ms p50=" + getPercentile(50)
+                + "ms p90=" + getPercentile(90) + "ms p99=" + getPercentile(99)
+                + "ms max=" + getMax() + "ms";
+    }
+}
@@ -0,0 +1,93 @@
+package com.lx.mystalecode.utils;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * author: liuxu
+ * date: 2016-04-12
+ *
+ * read a text file line by line, without holding the whole text.
+ *
+ * only the current line and a small read buffer are in memory, so it
+ * works for log files of any size. lines are split like
+ * BufferedReader.readLine(), and do not contain the line terminator.
+ *
+ * the file is closed when the last line is returned, or when an error
+ * happens. call close() if the iteration stops early.
+ *
+ * NOTE:
+ * Iterator can not throw IOException, an error while reading is thrown
+ * as IllegalStateException with the IOException as its cause.
+ *
+ * see FileUtils.iterateLines().
+ */
+public class LineIterator implements Iterator<String>, Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final BufferedReader mReader;
+    private String mNext;
+    private boolean mClosed;
+
+    /**
+     * @param file the file to read
+     * @param charset charset of the file
+     * @throws IOException if the file can not be opened
+     */
+    public LineIterator(File file, Charset charset) throws IOException {
+        mReader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), charset), BUFFER_SIZE);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mNext != null) {
+            return true;
+        }
+        if (mClosed) {
+            return false;
+        }
+        try {
+            mNext = mReader.readLine();
+        } catch (IOException e) {
+            close();
+            throw new IllegalStateException("failed to read line", e);
+        }
+        if (mNext == null) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String line = mNext;
+        mNext = null;
+        return line;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    @Override
+    public void close() {
+        if (!mClosed) {
+            mClosed = true;
+            FileUtils.closeSilently(mReader);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.lx.mystalecode.utils;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Printer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * author: liuxu
+ * date: 2016-04-05
+ *
+ * find messages that block the main thread for too long.
+ *
+ * the main looper prints a line before and after it dispatches every
+ * message (Looper.setMessageLogging()), which gives the time each
+ * message takes. when a message is still running after the threshold,
+ * the watchdog thread takes a stack trace of the main thread, so that
+ * it shows where the time goes, not only which handler it is in.
+ *
+ * stalls are aggregated by the first stack frame in the app's code
+ * (or by the handler and callback if there is no stack), and the worst
+ * offenders can be dumped with getOffenders() or logOffenders().
+ *
+ * NOTE:
+ * the looper builds the two lines for every message while logging is
+ * set, which costs a little. this also replaces any other printer set
+ * to the main looper.
+ *
+ * see GlobalThreadManager.startMainThreadWatchdog().
+ */
+public class MainThreadWatchdog {
+
+    public static final String TAG = MainThreadWatchdog.class.getSimpleName();
+
+    private static final int MAX_OFFENDERS = 64;
+    private static final String APP_PACKAGE = "com.lx.mystalecode.";
+    private static final String WATCHDOG_CLASS = MainThreadWatchdog.class.getName();
+
+    private final long mThreshold;
+    private final Thread mMainThread;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // written by main thread only
+    private long mDispatchStart;
+    private volatile int mDispatchSeq;
+    // written by watchdog thread
+    private volatile StackTraceElement[] mStack;
+    private volatile int mStackSeq;
+
+    // guarded by itself
+    private final Map<String, Offender> mOffenders = new HashMap<String, Offender>();
+    private long mStallCount;
+
+    /**
+     * @param thresholdMillis a message running longer than this is a stall
+     */
+    public MainThreadWatchdog(long thresholdMillis) {
+        mThreshold = thresholdMillis;
+        mMainThread = Looper.getMainLooper().getThread();
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public void start() {
+        Looper.getMainLooper().setMessageLogging(mPrinter);
+    }
+
+    public void stop() {
+        Looper.getMainLooper().setMessageLogging(null);
+        mHandler.removeCallbacks(mSampler);
+    }
+
+    /**
+     * stop and quit the watchdog thread.
+     */
+    public void release() {
+        stop();
+        mThread.quit();
+    }
+
+    public long getThreshold() {
+        return mThreshold;
+    }
+
+    /**
+     * @return number of stalls found
+     */
+    public long getStallCount() {
+        synchronized (mOffenders) {
+            return mStallCount;
+        }
+    }
+
+    /**
+     * @param count max number of offenders to return
+     * @return offenders, the one blocking the longest total time first
+     */
+    public List<Offender> getOffenders(int count) {
+        List<Offender> list;
+        synchronized (mOffenders) {
+            list = new ArrayList<Offender>(mOffenders.size());
+            for (Offender o : mOffenders.values()) {
+                list.add(o.copy());
+            }
+        }
+        Collections.sort(list, BY_TOTAL_TIME);
+        return list.size() > count ? list.subList(0, count) : list;
+    }
+
+    /**
+     * print the worst offenders to logcat, with stack of their longest stall.
+     * @param count max number of offenders
+     */
+    public void logOffenders(int count) {
+        Log.i(TAG, getStallCount() + " stalls longer than " + mThreshold + "ms");
+        for (Offender o : getOffenders(count)) {
+            Throwable stack = null;
+            if (o.stack != null) {
+                stack = new Throwable("stack of the longest one");
+                stack.setStackTrace(o.stack);
+            }
+            Log.i(TAG, o.toString(), stack);
+        }
+    }
+
+    public void clear() {
+        synchronized (mOffenders) {
+            mOffenders.clear();
+            mStallCount = 0;
+        }
+    }
+
+    private final Printer mPrinter = new Printer() {
+        @Override
+        public void println(String x) {
+            if (x.startsWith(">>>>>")) {
+                onDispatchStart();
+            } else if (x.startsWith("<<<<<")) {
+                onDispatchEnd(x);
+            }
+        }
+    };
+
+    // main thread
+    private void onDispatchStart() {
+        mDispatchSeq++;
+        mDispatchStart = SystemClock.uptimeMillis();
+        mHandler.postDelayed(mSampler, mThreshold);
+    }
+
+    // main thread
+    private void onDispatchEnd(String line) {
+        mHandler.removeCallbacks(mSampler);
+        long duration = SystemClock.uptimeMillis() - mDispatchStart;
+        if (duration < mThreshold || mDispatchStart == 0) {
+            return;
+        }
+        StackTraceElement[] stack = mStackSeq == mDispatchSeq ? mStack : null;
+        record(line, stack, duration);
+    }
+
+    // watchdog thread, threshold after a dispatch started
+    private final Runnable mSampler = new Runnable() {
+        @Override
+        public void run() {
+            int seq = mDispatchSeq;
+            StackTraceElement[] stack = mMainThread.getStackTrace();
+            if (seq == mDispatchSeq) {
+                mStack = stack;
+                mStackSeq = seq;
+            }
+        }
+    };
+
+    private void record(String line, StackTraceElement[] stack, long duration) {
+        String key = findAppFrame(stack);
+        if (key == null) {
+            key = dispatchTarget(line);
+        }
+        synchronized (mOffenders) {
+            mStallCount++;
+            Offender o = mOffenders.get(key);
+            if (o == null) {
+                if (mOffenders.size() >= MAX_OFFENDERS) {
+                    evictLeast();
+                }
+                o = new Offender(key);
+                mOffenders.put(key, o);
+            }
+            o.count++;
+            o.totalMillis += duration;
+            if (duration > o.maxMillis) {
+                o.maxMillis = duration;
+                if (stack != null) {
+                    o.stack = stack;
+                }
+            }
+        }
+    }
+
+    // must be called with mOffenders held
+    private void evictLeast() {
+        Offender least = null;
+        for (Offender o : mOffenders.values()) {
+            if (least == null || o.totalMillis < least.totalMillis) {
+                least = o;
+            }
+        }
+        if (least != null) {
+            mOffenders.remove(least.key);
+        }
+    }
+
+    private static String findAppFrame(StackTraceElement[] stack) {
+        if (stack == null) {
+            return null;
+        }
+        for (StackTraceElement e : stack) {
+            String cls = e.getClassName();
+            if (cls.startsWith(APP_PACKAGE) && !cls.startsWith(WATCHDOG_CLASS)) {
+                return e.toString();
+            }
+        }
+        return stack.length > 0 ? stack[0].toString() : null;
+    }
+
+    // "<<<<< Finished to Handler (a.b.C) {41a2c8} a.b.D@41a3f0"
+    // -> "Handler (a.b.C) a.b.D", without instance hashes
+    private static String dispatchTarget(String line) {
+        String s = line.startsWith("<<<<< Finished to ") ?
+                line.substring("<<<<< Finished to ".length()) : line;
+        return s.replaceAll("\\{[0-9a-f]+\\} ?", "").replaceAll("@[0-9a-f]+", "");
+    }
+
+    private static final Comparator<Offender> BY_TOTAL_TIME = new Comparator<Offender>() {
+        @Override
+        public int compare(Offender lhs, Offender rhs) {
+            return lhs.totalMillis > rhs.totalMillis ? -1 :
+                    (lhs.totalMillis == rhs.totalMillis ? 0 : 1);
+        }
+    };
+
+    /**
+     * a place in code that stalled the main thread.
+     */
+    public static class Offender {
+        /** the stack frame in app's code, or the handler and callback */
+        public final String key;
+        public int count;
+        public long totalMillis;
+        public long maxMillis;
+        /** main thread stack of the longest stall, can be null */
+        public StackTraceElement[] stack;
+
+        Offender(String key) {
+            this.key = key;
+        }
+
+        Offender copy() {
+            Offender o = new Offender(key);
+            o.count = count;
+            o.totalMillis = totalMillis;
+            o.maxMillis = maxMillis;
+            o.stack = stack;
+            return o;
+        }
+
+        @Override
+        public String toString() {
+            return key + ": count=" + count + " total=" + totalMillis + "ms max=" + maxMillis + "ms";
+        }
+    }
+}
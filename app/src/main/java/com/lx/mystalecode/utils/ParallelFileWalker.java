@@ -0,0 +1,244 @@
+package com.lx.mystalecode.utils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * author: liuxu
+ * date: 2016-03-09
+ *
+ * list files and folders under a folder with several threads.
+ *
+ * work is split by sub folder, fork/join style: a worker takes a folder
+ * from the shared work deque, lists it, stats its children and pushes
+ * the sub folders back as new work. idle workers take the most recently
+ * pushed folder, so the walk stays depth first and close to the disk
+ * cache. workers run in GlobalThreadManager's io pool, and the
+ * calling thread works as one of them, so the walk never waits for a
+ * free pool thread. (ForkJoinPool is not used since it needs API 21,
+ * and it is meant for cpu bound work, not for blocking I/O.)
+ *
+ * ordered mode returns exactly what FileUtils.getSubFiles() returns,
+ * in the same order. unordered mode skips building the tree and is
+ * faster, but files come in no particular order.
+ *
+ * see FileUtils.getSubFilesParallel().
+ */
+public class ParallelFileWalker {
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private final File mFolder;
+    private final FileFilter mFilter;
+    private final int mMaxDepth;
+    private final boolean mIncludeSelf;
+    private int mParallelism = CPU_COUNT;
+
+    // guarded by mLock
+    private final Object mLock = new Object();
+    private final Deque<Node> mWork = new ArrayDeque<Node>();
+    private final List<List<File>> mUnorderedResults = new ArrayList<List<File>>();
+    private int mPending;
+    private RuntimeException mError;
+
+    /**
+     * @param folder the folder to walk through
+     * @param filter filter for files, can be null
+     * @param depth depth limit, 0 and negative means no limit
+     * @param includeSelf whether the folder itself is in the result
+     * @throws IllegalArgumentException if folder does not exist
+     */
+    public ParallelFileWalker(File folder, FileFilter filter,
+                              int depth, boolean includeSelf) throws IllegalArgumentException {
+        if (!folder.exists()) {
+            throw new IllegalArgumentException("not a valid folder: " + folder);
+        }
+        mFolder = folder;
+        mFilter = filter;
+        mMaxDepth = depth <= 0 ? Integer.MAX_VALUE : depth;
+        mIncludeSelf = includeSelf;
+    }
+
+    /**
+     * @param parallelism number of threads to use, including the
+     *                    calling thread. default is the number of cores.
+     * @return this
+     */
+    public ParallelFileWalker setParallelism(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * walk through the folder. blocks until done.
+     * an instance can only be walked once.
+     * @param ordered true to get the same order as FileUtils.getSubFiles()
+     * @return all files and folders found
+     */
+    public List<File> walk(boolean ordered) {
+        Node root = new Node(mFolder, 0, ordered);
+        synchronized (mLock) {
+            mWork.push(root);
+            mPending = 1;
+        }
+        for (int i = 1; i < mParallelism; i++) {
+            try {
+                GlobalThreadManager.runInIoPool(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // pool is busy, go on with less workers
+                break;
+            }
+        }
+        work();
+
+        synchronized (mLock) {
+            if (mError != null) {
+                throw mError;
+            }
+            List<File> result = new ArrayList<File>();
+            if (mIncludeSelf) {
+                result.add(mFolder);
+            }
+            if (ordered) {
+                flatten(root, result);
+            } else {
+                for (List<File> part : mUnorderedResults) {
+                    result.addAll(part);
+                }
+            }
+            return result;
+        }
+    }
+
+    private void work() {
+        List<File> found = null;
+        while (true) {
+            Node node;
+            synchronized (mLock) {
+                while (mWork.isEmpty() && mPending > 0) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        fail(new IllegalStateException("interrupted"));
+                        return;
+                    }
+                }
+                if (mPending == 0) {
+                    return;
+                }
+                node = mWork.pop();
+            }
+
+            List<Node> subs = null;
+            try {
+                if (!node.ordered && found == null) {
+                    found = new ArrayList<File>();
+                    synchronized (mLock) {
+                        mUnorderedResults.add(found);
+                    }
+                }
+                subs = process(node, found);
+            } catch (RuntimeException e) {
+                synchronized (mLock) {
+                    fail(e);
+                }
+            }
+
+            synchronized (mLock) {
+                if (subs != null && mError == null) {
+                    for (int i = subs.size() - 1; i >= 0; i--) {
+                        // pushed in reverse so that the first one is taken first
+                        mWork.push(subs.get(i));
+                    }
+                    mPending += subs.size();
+                }
+                mPending--;
+                if (mPending == 0 || !mWork.isEmpty()) {
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    // list one folder. returns its sub folders to walk into.
+    private List<Node> process(Node node, List<File> found) {
+        File[] files = node.dir.listFiles(mFilter);
+        if (files == null || files.length == 0) {
+            return null;
+        }
+        int childDepth = node.depth + 1;
+        boolean goDeeper = childDepth < mMaxDepth;
+        List<Node> subs = null;
+        if (node.ordered) {
+            node.files = files;
+            node.subs = new Node[files.length];
+        } else {
+            Collections.addAll(found, files);
+        }
+        if (goDeeper) {
+            for (int i = 0; i < files.length; i++) {
+                if (files[i].isDirectory()) {
+                    Node sub = new Node(files[i], childDepth, node.ordered);
+                    if (node.ordered) {
+                        node.subs[i] = sub;
+                    }
+                    if (subs == null) {
+                        subs = new ArrayList<Node>();
+                    }
+                    subs.add(sub);
+                }
+            }
+        }
+        return subs;
+    }
+
+    // must be called with mLock held
+    private void fail(RuntimeException e) {
+        if (mError == null) {
+            mError = e;
+        }
+        // drop the remaining work so that every worker quits soon
+        mPending -= mWork.size();
+        mWork.clear();
+        mLock.notifyAll();
+    }
+
+    private static void flatten(Node node, List<File> out) {
+        if (node.files == null) {
+            return;
+        }
+        for (int i = 0; i < node.files.length; i++) {
+            out.add(node.files[i]);
+            if (node.subs[i] != null) {
+                flatten(node.subs[i], out);
+            }
+        }
+    }
+
+    // a folder to be listed. files and subs are only kept in ordered mode
+    private static class Node {
+        final File dir;
+        final int depth;
+        final boolean ordered;
+        File[] files;
+        Node[] subs;
+
+        Node(File dir, int depth, boolean ordered) {
+            this.dir = dir;
+            this.depth = depth;
+            this.ordered = ordered;
+        }
+    }
+}
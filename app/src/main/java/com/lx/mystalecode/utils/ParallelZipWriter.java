@@ -0,0 +1,614 @@
+package com.lx.mystalecode.utils;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * author: liuxu
+ * date: 2016-03-04
+ *
+ * pack a folder into a zip file using all cores.
+ *
+ * files are cut into chunks (DEFAULT_CHUNK_SIZE each). every chunk is
+ * read in GlobalThreadManager's io pool, then checksummed and deflated
+ * in its compute pool into its own buffer. stored chunks only need a
+ * crc, and stay in the io pool. the calling thread acts as the only
+ * writer: it takes the chunks back in order, writes the zip headers,
+ * combines the chunk CRCs and builds the central directory.
+ *
+ * chunks of one entry are deflated independently with SYNC_FLUSH, so
+ * their output can simply be concatenated into one deflate stream.
+ * SYNC_FLUSH is only available since KitKat, on older devices a big
+ * entry is deflated by the writer thread, while its chunks are still
+ * read in parallel.
+ *
+ * the bytes in flight (raw chunks and their deflated output) are bounded
+ * by a share of the heap limit, see getPendingBudget(), so memory usage
+ * does not grow with the folder size or the number of cores.
+ *
+ * NOTE:
+ * zip() blocks until done, call it in a thread that is not part of
+ * GlobalThreadManager's compute or io pool.
+ * zip64 is not supported, entries and the zip file itself must be
+ * smaller than 4GB, and there can be no more than 65535 entries.
+ */
+public class ParallelZipWriter {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    // keep the pool busy, but do not fill up its work queue
+    private static final int MAX_PENDING_CHUNKS = Math.min(CPU_COUNT * 3, 48);
+    // share of the heap limit that chunks in flight may take
+    private static final int PENDING_BUDGET_DIVISOR = 8;
+
+    private static final long PROGRESS_INTERVAL = 200;
+
+    private static final boolean SYNC_FLUSH_SUPPORTED =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private int mLevel = Deflater.DEFAULT_COMPRESSION;
+    private ZipEngine.CompressionPolicy mPolicy = ZipEngine.POLICY_STORE_COMPRESSED;
+    private ZipEngine.ProgressListener mListener;
+
+    /**
+     * @param size size of the chunks a file is cut into
+     * @return this
+     */
+    public ParallelZipWriter setChunkSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("invalid chunk size: " + size);
+        }
+        mChunkSize = size;
+        return this;
+    }
+
+    /**
+     * @param level 0-9, or Deflater.DEFAULT_COMPRESSION
+     * @return this
+     */
+    public ParallelZipWriter setLevel(int level) {
+        mLevel = level;
+        return this;
+    }
+
+    /**
+     * @param policy see ZipEngine.CompressionPolicy. null for
+     *               ZipEngine.POLICY_DEFLATE_ALL
+     * @return this
+     */
+    public ParallelZipWriter setCompressionPolicy(ZipEngine.CompressionPolicy policy) {
+        mPolicy = policy == null ? ZipEngine.POLICY_DEFLATE_ALL : policy;
+        return this;
+    }
+
+    /**
+     * @param listener callback for progress, invoked in the writer thread
+     * @return this
+     */
+    public ParallelZipWriter setProgressListener(ZipEngine.ProgressListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * pack everything under dir into zipFile, entry names are relative
+     * to dir. the result is the same as ZipEngine.zip() produces.
+     * @param dir the folder to zip
+     * @param zipFile the target zip file
+     * @throws IOException
+     */
+    public void zip(File dir, File zipFile) throws IOException {
+        if (!dir.isDirectory()) {
+            throw new IOException("not a dir: " + dir);
+        }
+        File target = zipFile.getAbsoluteFile();
+        Writer writer = new Writer(target);
+        try {
+            Deque<Level> stack = new ArrayDeque<Level>();
+            stack.push(new Level(dir.listFiles(), ""));
+            while (!stack.isEmpty()) {
+                Level level = stack.peek();
+                if (level.index >= level.files.length) {
+                    stack.pop();
+                    continue;
+                }
+                File f = level.files[level.index];
+                level.files[level.index++] = null;
+                String name = level.prefix + f.getName();
+                if (f.isDirectory()) {
+                    File[] children = f.listFiles();
+                    if (children == null || children.length == 0) {
+                        writer.schedule(new Entry(f, name + "/", true, false));
+                    } else {
+                        stack.push(new Level(children, name + "/"));
+                    }
+                } else if (!f.getAbsoluteFile().equals(target)) {
+                    writer.schedule(new Entry(f, name, false,
+                            mPolicy.getMethod(f) == ZipEntry.DEFLATED));
+                }
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    // =====================================================================
+
+    private static class Level {
+        final File[] files;
+        final String prefix;
+        int index;
+
+        Level(File[] files, String prefix) {
+            this.files = files == null ? new File[0] : files;
+            this.prefix = prefix;
+        }
+    }
+
+    // one zip entry. header fields and serialDeflater are only touched
+    // by writer
+    private static class Entry extends ZipOutput.Header {
+        final File file;
+        int chunkCount;
+        // deflate the whole entry in writer thread, see class comment
+        boolean serialDeflate;
+        Deflater serialDeflater;
+
+        Entry(File file, String name, boolean isDir, boolean deflate) {
+            super(name, isDir, file.lastModified(), deflate);
+            this.file = file;
+        }
+    }
+
+    // a scheduled chunk of an entry, in the order they are written
+    private static class Piece {
+        final Entry entry;
+        final int index;
+        final Future<Chunk> future;
+        // heap the chunk may take until written
+        final long cost;
+
+        Piece(Entry entry, int index, Future<Chunk> future, long cost) {
+            this.entry = entry;
+            this.index = index;
+            this.future = future;
+            this.cost = cost;
+        }
+
+        boolean isFirst() {
+            return index == 0;
+        }
+
+        boolean isLast() {
+            return index == entry.chunkCount - 1;
+        }
+    }
+
+    // result of a chunk task
+    private static class Chunk {
+        byte[] data;
+        int dataLength;
+        int rawLength;
+        long crc;
+    }
+
+    // read() may be done in advance in another thread, call() does the
+    // read itself otherwise
+    private class ChunkTask implements Callable<Chunk> {
+        private final File mFile;
+        private final long mOffset;
+        private final int mLength;
+        private final boolean mDeflate;
+        private final boolean mLast;
+        private byte[] mRaw;
+        private int mRead;
+        private IOException mError;
+
+        ChunkTask(File file, long offset, int length, boolean deflate, boolean last) {
+            mFile = file;
+            mOffset = offset;
+            mLength = length;
+            mDeflate = deflate;
+            mLast = last;
+        }
+
+        void read() {
+            byte[] raw = new byte[mLength];
+            int read = 0;
+            try {
+                RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+                try {
+                    raf.seek(mOffset);
+                    int len;
+                    while (read < mLength && (len = raf.read(raw, read, mLength - read)) != -1) {
+                        read += len;
+                    }
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                mError = e;
+                return;
+            }
+            mRaw = raw;
+            mRead = read;
+        }
+
+        @Override
+        public Chunk call() throws IOException {
+            if (mRaw == null && mError == null) {
+                read();
+            }
+            if (mError != null) {
+                throw mError;
+            }
+            byte[] raw = mRaw;
+            int read = mRead;
+            mRaw = null;
+
+            Chunk chunk = new Chunk();
+            CRC32 crc = new CRC32();
+            crc.update(raw, 0, read);
+            chunk.crc = crc.getValue();
+            chunk.rawLength = read;
+            if (mDeflate) {
+                chunk.data = deflate(raw, read, mLast);
+                chunk.dataLength = chunk.data.length;
+            } else {
+                chunk.data = raw;
+                chunk.dataLength = read;
+            }
+            return chunk;
+        }
+
+        // the last chunk finishes the deflate stream, others are
+        // sync flushed so that they end on a byte boundary
+        private byte[] deflate(byte[] raw, int length, boolean last) {
+            Deflater deflater = new Deflater(mLevel, true);
+            try {
+                deflater.setInput(raw, 0, length);
+                byte[] out = new byte[length + (length >> 12) + (length >> 14) + 64];
+                int outLength = 0;
+                if (last) {
+                    deflater.finish();
+                }
+                while (true) {
+                    if (outLength == out.length) {
+                        byte[] bigger = new byte[out.length * 2];
+                        System.arraycopy(out, 0, bigger, 0, outLength);
+                        out = bigger;
+                    }
+                    int space = out.length - outLength;
+                    if (last) {
+                        outLength += deflater.deflate(out, outLength, space);
+                        if (deflater.finished()) {
+                            break;
+                        }
+                    } else {
+                        int n = syncFlush(deflater, out, outLength, space);
+                        outLength += n;
+                        // flush is done once output space is left over
+                        if (n < space) {
+                            break;
+                        }
+                    }
+                }
+                byte[] result = new byte[outLength];
+                System.arraycopy(out, 0, result, 0, outLength);
+                return result;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.KITKAT)
+        private int syncFlush(Deflater deflater, byte[] out, int off, int len) {
+            return deflater.deflate(out, off, len, Deflater.SYNC_FLUSH);
+        }
+    }
+
+    // read a chunk in io pool, then hand it to compute pool to deflate
+    private static class ReadStage implements Runnable {
+        private final ChunkTask mTask;
+        private final FutureTask<Chunk> mFuture;
+
+        ReadStage(ChunkTask task, FutureTask<Chunk> future) {
+            mTask = task;
+            mFuture = future;
+        }
+
+        @Override
+        public void run() {
+            if (mFuture.isDone()) {
+                return;
+            }
+            mTask.read();
+            GlobalThreadManager.runInComputePool(mFuture);
+        }
+    }
+
+    // =====================================================================
+
+    private class Writer {
+        private final ZipOutput mOut;
+        private final Deque<Piece> mPending = new ArrayDeque<Piece>();
+        private final long mPendingBudget;
+        private long mPendingBytes;
+        private int mEntryCount;
+
+        private final long mStartTime;
+        private long mLastReportTime;
+        private long mBytesDone;
+
+        Writer(File target) throws IOException {
+            mOut = new ZipOutput(target, 64 * 1024);
+            mPendingBudget = getPendingBudget();
+            mStartTime = SystemClock.elapsedRealtime();
+            mLastReportTime = mStartTime;
+        }
+
+        void schedule(Entry entry) throws IOException {
+            // fail early, before the data is read
+            if (++mEntryCount > ZipOutput.ZIP32_MAX_ENTRIES) {
+                throw new IOException("too many entries, zip64 is not supported");
+            }
+            if (entry.isDir) {
+                entry.chunkCount = 1;
+                enqueue(new Piece(entry, 0, null, 0));
+                return;
+            }
+            long length = entry.file.length();
+            if (length > ZipOutput.ZIP32_LIMIT) {
+                throw new IOException("file too large, zip64 is not supported: " + entry.file);
+            }
+            int count = (int) Math.max(1, (length + mChunkSize - 1) / mChunkSize);
+            entry.chunkCount = count;
+            entry.serialDeflate = entry.deflate && count > 1 && !SYNC_FLUSH_SUPPORTED;
+            for (int i = 0; i < count; i++) {
+                long offset = (long) i * mChunkSize;
+                boolean last = i == count - 1;
+                // chunk sizes are fixed by the length seen here. if the file
+                // shrinks meanwhile the last chunk is read short, if it grows
+                // the extra bytes are left out
+                int chunkLength = last ?
+                        (int) Math.max(0, Math.min(mChunkSize, length - offset)) : mChunkSize;
+                boolean deflate = entry.deflate && !entry.serialDeflate;
+                ChunkTask task = new ChunkTask(entry.file, offset, chunkLength, deflate, last);
+                FutureTask<Chunk> future = new FutureTask<Chunk>(task);
+                // the raw data, plus about as much again for deflate output
+                long cost = deflate ? 2L * chunkLength : chunkLength;
+                enqueue(new Piece(entry, i, future, cost));
+                if (deflate) {
+                    GlobalThreadManager.runInIoPool(new ReadStage(task, future));
+                } else {
+                    GlobalThreadManager.runInIoPool(future);
+                }
+            }
+        }
+
+        // one piece is always allowed, so a chunk bigger than the budget
+        // still makes progress
+        private void enqueue(Piece piece) throws IOException {
+            while (!mPending.isEmpty() && (mPending.size() >= MAX_PENDING_CHUNKS
+                    || mPendingBytes + piece.cost > mPendingBudget)) {
+                writeNext();
+            }
+            mPending.add(piece);
+            mPendingBytes += piece.cost;
+        }
+
+        void finish() throws IOException {
+            while (!mPending.isEmpty()) {
+                writeNext();
+            }
+            mOut.finish();
+            reportProgress(null, true);
+        }
+
+        void close() throws IOException {
+            // make sure no task is left in the pool on failure
+            for (Piece p : mPending) {
+                if (p.future != null) {
+                    p.future.cancel(false);
+                }
+            }
+            mPending.clear();
+            mPendingBytes = 0;
+            mOut.close();
+        }
+
+        private void writeNext() throws IOException {
+            Piece piece = mPending.poll();
+            mPendingBytes -= piece.cost;
+            Entry entry = piece.entry;
+            if (entry.isDir) {
+                mOut.writeLocalHeader(entry);
+                mOut.writeCentralHeader(entry);
+                return;
+            }
+
+            Chunk chunk = await(piece.future);
+            if (piece.isFirst()) {
+                if (!entry.serialDeflate && entry.deflate && entry.chunkCount == 1
+                        && chunk.dataLength >= chunk.rawLength) {
+                    // deflate does not help, store it
+                    entry.deflate = false;
+                    chunk = readAsStored(piece);
+                }
+                if (entry.chunkCount == 1 && !entry.serialDeflate) {
+                    // everything is known, no need to patch the header later
+                    entry.crc = chunk.crc;
+                    entry.size = chunk.rawLength;
+                    entry.compressedSize = chunk.dataLength;
+                }
+                mOut.writeLocalHeader(entry);
+                if (entry.serialDeflate) {
+                    entry.serialDeflater = new Deflater(mLevel, true);
+                }
+            }
+
+            if (entry.chunkCount > 1) {
+                entry.crc = piece.isFirst() ? chunk.crc :
+                        crc32Combine(entry.crc, chunk.crc, chunk.rawLength);
+                entry.size += chunk.rawLength;
+            }
+            if (entry.serialDeflate) {
+                writeSerialDeflated(entry, chunk, piece.isLast());
+            } else {
+                mOut.write(chunk.data, 0, chunk.dataLength);
+                if (entry.chunkCount > 1) {
+                    entry.compressedSize += chunk.dataLength;
+                }
+            }
+            mBytesDone += chunk.rawLength;
+
+            if (piece.isLast()) {
+                if (entry.chunkCount > 1 || entry.serialDeflate) {
+                    mOut.patchLocalHeader(entry);
+                }
+                mOut.writeCentralHeader(entry);
+                reportProgress(entry.file, false);
+            }
+        }
+
+        // the chunk is already deflated in the pool; re-read the raw data,
+        // which is small since the entry has only one chunk
+        private Chunk readAsStored(Piece piece) throws IOException {
+            Entry entry = piece.entry;
+            ChunkTask task = new ChunkTask(entry.file, 0,
+                    (int) Math.min(mChunkSize, entry.file.length()), false, true);
+            return task.call();
+        }
+
+        private void writeSerialDeflated(Entry entry, Chunk chunk, boolean last)
+                throws IOException {
+            Deflater deflater = entry.serialDeflater;
+            byte[] buf = new byte[64 * 1024];
+            deflater.setInput(chunk.data, 0, chunk.dataLength);
+            if (last) {
+                deflater.finish();
+            }
+            while (last ? !deflater.finished() : !deflater.needsInput()) {
+                int n = deflater.deflate(buf);
+                mOut.write(buf, 0, n);
+                entry.compressedSize += n;
+            }
+            if (last) {
+                deflater.end();
+                entry.serialDeflater = null;
+            }
+        }
+
+        private Chunk await(Future<Chunk> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(String.valueOf(cause));
+            }
+        }
+
+        private void reportProgress(File file, boolean force) {
+            if (mListener == null) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (!force && now - mLastReportTime < PROGRESS_INTERVAL) {
+                return;
+            }
+            mLastReportTime = now;
+            long elapsed = now - mStartTime;
+            long speed = elapsed > 0 ? mBytesDone * 1000 / elapsed : 0;
+            mListener.onProgress(file, mBytesDone, speed);
+        }
+    }
+
+    // =====================================================================
+    // helpers
+
+    // bytes the chunks in flight may take, from the heap limit of the app
+    private static long getPendingBudget() {
+        Runtime runtime = Runtime.getRuntime();
+        long max = runtime.maxMemory();
+        if (max == Long.MAX_VALUE) {
+            // no limit set, use what the heap has now
+            max = runtime.totalMemory();
+        }
+        return max / PENDING_BUDGET_DIVISOR;
+    }
+
+    // crc of two concatenated blocks, ported from zlib's crc32_combine()
+    static long crc32Combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec) {
+        long sum = 0;
+        int i = 0;
+        while (vec != 0) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+}
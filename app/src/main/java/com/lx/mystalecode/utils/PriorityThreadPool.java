@@ -0,0 +1,480 @@
+package com.lx.mystalecode.utils;
+
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * author: liuxu
+ * date: 2016-03-22
+ *
+ * a thread pool that runs tasks by priority, and never throws
+ * RejectedExecutionException when it is busy.
+ *
+ * tasks are queued in three lanes: PRIORITY_UI_CRITICAL, PRIORITY_NORMAL
+ * and PRIORITY_BACKGROUND. a higher lane is always taken first, tasks
+ * in the same lane run in the order they are queued.
+ *
+ * the queue has a soft capacity. when it is full the pool first grows
+ * to its maximum size, just like a ThreadPoolExecutor with a bounded
+ * queue does, and shrinks back to core size once the queue is drained.
+ * if it is still full, OverflowPolicy decides what happens.
+ *
+ * the pool counts tasks per lane and records how long tasks wait in
+ * the queue and how long they run. getStats() takes a snapshot of all
+ * of it, together with the longest running task, for logging.
+ *
+ * used by GlobalThreadManager.
+ */
+public class PriorityThreadPool extends ThreadPoolExecutor {
+
+    /** latency sensitive work, which the user is waiting for */
+    public static final int PRIORITY_UI_CRITICAL = 0;
+    /** default priority */
+    public static final int PRIORITY_NORMAL = 1;
+    /** bulk jobs, like indexing or packing files */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final int LANE_COUNT = 3;
+
+    public enum OverflowPolicy {
+        /**
+         * run the task in the calling thread. a task queued from main
+         * thread is spilled instead, main thread never runs pool work.
+         */
+        CALLER_RUNS,
+        /** queue the task anyway, beyond the capacity */
+        SPILL,
+        /**
+         * drop the oldest future of the lowest priority to make room. only
+         * futures are dropped, as they are cancelled and so the caller can
+         * tell; plain runnables (e.g. internal runners of other executors)
+         * are spilled if there is no future to drop.
+         */
+        DROP_OLDEST
+    }
+
+    private final int mCorePoolSize;
+    private final int mCapacity;
+    private volatile OverflowPolicy mPolicy;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicInteger mOverflowCount = new AtomicInteger();
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+    private final AtomicInteger mCallerRunsCount = new AtomicInteger();
+    private final AtomicInteger mRejectedCount = new AtomicInteger();
+    private final AtomicInteger mFailedCount = new AtomicInteger();
+    private final AtomicLongArray mSubmitted = new AtomicLongArray(LANE_COUNT);
+    private final AtomicLongArray mCompleted = new AtomicLongArray(LANE_COUNT);
+    private final LatencyHistogram mWaitTime = new LatencyHistogram();
+    private final LatencyHistogram mRunTime = new LatencyHistogram();
+    // tasks being run, by worker thread
+    private final Map<Thread, PriorityTask> mRunning =
+            new ConcurrentHashMap<Thread, PriorityTask>();
+
+    /**
+     * @param corePoolSize threads kept when idle
+     * @param maximumPoolSize max threads when the queue is full
+     * @param keepAliveSeconds idle time before an extra thread quits
+     * @param capacity soft capacity of the queue
+     * @param threadFactory thread factory
+     * @param policy what to do when the queue is full
+     */
+    public PriorityThreadPool(int corePoolSize, int maximumPoolSize,
+                              long keepAliveSeconds, int capacity,
+                              ThreadFactory threadFactory, OverflowPolicy policy) {
+        super(corePoolSize, maximumPoolSize, keepAliveSeconds, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), threadFactory);
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                // only happens after shutdown
+                mRejectedCount.incrementAndGet();
+                throw new RejectedExecutionException("pool is shut down");
+            }
+        });
+        mCorePoolSize = corePoolSize;
+        mCapacity = capacity;
+        mPolicy = policy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        mPolicy = policy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * @return times the queue was found full
+     */
+    public int getOverflowCount() {
+        return mOverflowCount.get();
+    }
+
+    /**
+     * @return number of tasks dropped by DROP_OLDEST
+     */
+    public int getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        execute(command, PRIORITY_NORMAL);
+    }
+
+    /**
+     * run a task with the given priority.
+     * @param command the task
+     * @param priority PRIORITY_UI_CRITICAL, PRIORITY_NORMAL or
+     *                 PRIORITY_BACKGROUND
+     */
+    public void execute(Runnable command, int priority) {
+        execute(command, priority, null);
+    }
+
+    /**
+     * run a task with the given priority and tag.
+     * @param command the task
+     * @param priority PRIORITY_UI_CRITICAL, PRIORITY_NORMAL or
+     *                 PRIORITY_BACKGROUND
+     * @param tag tag to cancel the task by, can be null
+     */
+    public void execute(Runnable command, int priority, Object tag) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        priority = Math.max(PRIORITY_UI_CRITICAL, Math.min(PRIORITY_BACKGROUND, priority));
+        PriorityTask task = new PriorityTask(command, priority, mSequence.getAndIncrement(), tag);
+        mSubmitted.incrementAndGet(priority);
+        if (!isShutdown() && getQueue().size() >= mCapacity) {
+            if (!onOverflow(task)) {
+                return;
+            }
+        }
+        super.execute(task);
+    }
+
+    // returns true if the task should still be queued
+    private boolean onOverflow(PriorityTask task) {
+        mOverflowCount.incrementAndGet();
+        if (getCorePoolSize() < getMaximumPoolSize()) {
+            // grow first, as a full bounded queue would
+            setCorePoolSize(getMaximumPoolSize());
+            return true;
+        }
+        switch (mPolicy) {
+        case CALLER_RUNS:
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                // do not block main thread, spill
+                return true;
+            }
+            mCallerRunsCount.incrementAndGet();
+            task.run();
+            return false;
+        case DROP_OLDEST:
+            PriorityTask victim = findVictim();
+            if (victim == null) {
+                // nothing can be dropped safely, spill
+                return true;
+            }
+            if (victim.priority < task.priority) {
+                // every droppable task is more important than this one
+                if (task.task instanceof Future) {
+                    drop(task);
+                    return false;
+                }
+                return true;
+            }
+            if (getQueue().remove(victim)) {
+                drop(victim);
+            }
+            return true;
+        case SPILL:
+        default:
+            return true;
+        }
+    }
+
+    // the oldest future in the lowest lane
+    private PriorityTask findVictim() {
+        PriorityTask victim = null;
+        for (Runnable r : getQueue()) {
+            PriorityTask t = (PriorityTask) r;
+            if (!(t.task instanceof Future)) {
+                continue;
+            }
+            if (victim == null || t.priority > victim.priority
+                    || (t.priority == victim.priority && t.sequence < victim.sequence)) {
+                victim = t;
+            }
+        }
+        return victim;
+    }
+
+    // only futures are dropped, cancelled so that nobody waits forever
+    private void drop(PriorityTask task) {
+        mDroppedCount.incrementAndGet();
+        ((Future<?>) task.task).cancel(false);
+    }
+
+    /**
+     * remove queued tasks with the tag, and cancel running ones if they
+     * are futures.
+     * @param tag the tag, compared with equals()
+     * @return number of tasks removed from the queue
+     */
+    public int cancelByTag(Object tag) {
+        if (tag == null) {
+            return 0;
+        }
+        int removed = 0;
+        for (Runnable r : getQueue()) {
+            PriorityTask task = (PriorityTask) r;
+            if (tag.equals(task.tag) && getQueue().remove(task)) {
+                removed++;
+                if (task.task instanceof Future) {
+                    ((Future<?>) task.task).cancel(false);
+                }
+            }
+        }
+        for (PriorityTask task : mRunning.values()) {
+            if (tag.equals(task.tag) && task.task instanceof Future) {
+                ((Future<?>) task.task).cancel(true);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean remove(Runnable task) {
+        Iterator<Runnable> it = getQueue().iterator();
+        while (it.hasNext()) {
+            Runnable r = it.next();
+            if (r == task || ((PriorityTask) r).task == task) {
+                return getQueue().remove(r);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        PriorityTask task = (PriorityTask) r;
+        task.startTime = System.nanoTime();
+        task.thread = t;
+        mWaitTime.record((task.startTime - task.queueTime) / 1000000);
+        mRunning.put(t, task);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        PriorityTask task = (PriorityTask) r;
+        mRunning.remove(Thread.currentThread());
+        mRunTime.record((System.nanoTime() - task.startTime) / 1000000);
+        mCompleted.incrementAndGet(task.priority);
+        if (t != null) {
+            mFailedCount.incrementAndGet();
+        }
+        if (getCorePoolSize() > mCorePoolSize && getQueue().isEmpty()) {
+            // burst is over, extra threads quit after keep alive time
+            setCorePoolSize(mCorePoolSize);
+        }
+    }
+
+    /**
+     * @return the task running for the longest time, or null if idle
+     */
+    public RunningTask getLongestRunningTask() {
+        PriorityTask longest = null;
+        for (PriorityTask task : mRunning.values()) {
+            if (longest == null || task.startTime < longest.startTime) {
+                longest = task;
+            }
+        }
+        if (longest == null) {
+            return null;
+        }
+        return new RunningTask(longest.task, longest.thread,
+                (System.nanoTime() - longest.startTime) / 1000000);
+    }
+
+    /**
+     * find tasks running for longer than the threshold. each task is
+     * returned only once, so this can be polled by a watchdog.
+     * @param thresholdMillis threshold, in milliseconds
+     * @return tasks newly found, empty if none
+     */
+    public List<RunningTask> findLongRunningTasks(long thresholdMillis) {
+        List<RunningTask> list = new ArrayList<RunningTask>(0);
+        long now = System.nanoTime();
+        for (PriorityTask task : mRunning.values()) {
+            long running = (now - task.startTime) / 1000000;
+            if (running >= thresholdMillis && !task.reported) {
+                task.reported = true;
+                list.add(new RunningTask(task.task, task.thread, running));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return a snapshot of the state and counters of the pool
+     */
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.poolSize = getPoolSize();
+        stats.activeCount = getActiveCount();
+        stats.largestPoolSize = getLargestPoolSize();
+        for (Runnable r : getQueue()) {
+            stats.queued[((PriorityTask) r).priority]++;
+        }
+        for (int i = 0; i < LANE_COUNT; i++) {
+            stats.submitted[i] = mSubmitted.get(i);
+            stats.completed[i] = mCompleted.get(i);
+        }
+        stats.failed = mFailedCount.get();
+        stats.overflows = mOverflowCount.get();
+        stats.callerRuns = mCallerRunsCount.get();
+        stats.dropped = mDroppedCount.get();
+        stats.rejected = mRejectedCount.get();
+        stats.waitTime = mWaitTime.toString();
+        stats.runTime = mRunTime.toString();
+        stats.longestRunning = getLongestRunningTask();
+        return stats;
+    }
+
+    /**
+     * clear the counters and histograms.
+     */
+    public void resetStats() {
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mSubmitted.set(i, 0);
+            mCompleted.set(i, 0);
+        }
+        mFailedCount.set(0);
+        mOverflowCount.set(0);
+        mCallerRunsCount.set(0);
+        mDroppedCount.set(0);
+        mRejectedCount.set(0);
+        mWaitTime.reset();
+        mRunTime.reset();
+    }
+
+    /**
+     * a task being run, see getLongestRunningTask().
+     */
+    public static class RunningTask {
+        public final Runnable task;
+        public final Thread thread;
+        public final long runningMillis;
+
+        RunningTask(Runnable task, Thread thread, long runningMillis) {
+            this.task = task;
+            this.thread = thread;
+            this.runningMillis = runningMillis;
+        }
+
+        @Override
+        public String toString() {
+            return task.getClass().getName() + " in " + thread.getName()
+                    + " for " + runningMillis + "ms";
+        }
+    }
+
+    /**
+     * a snapshot of the pool, see getStats(). lanes are indexed by
+     * priority.
+     */
+    public static class Stats {
+        public int poolSize;
+        public int activeCount;
+        public int largestPoolSize;
+        public final int[] queued = new int[LANE_COUNT];
+        public final long[] submitted = new long[LANE_COUNT];
+        public final long[] completed = new long[LANE_COUNT];
+        public int failed;
+        public int overflows;
+        public int callerRuns;
+        public int dropped;
+        public int rejected;
+        public String waitTime;
+        public String runTime;
+        public RunningTask longestRunning;
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("threads=").append(poolSize)
+                    .append(" active=").append(activeCount)
+                    .append(" largest=").append(largestPoolSize);
+            for (int i = 0; i < LANE_COUNT; i++) {
+                sb.append("\nlane ").append(i)
+                        .append(": queued=").append(queued[i])
+                        .append(" submitted=").append(submitted[i])
+                        .append(" completed=").append(completed[i]);
+            }
+            sb.append("\nfailed=").append(failed)
+                    .append(" overflows=").append(overflows)
+                    .append(" callerRuns=").append(callerRuns)
+                    .append(" dropped=").append(dropped)
+                    .append(" rejected=").append(rejected);
+            sb.append("\nwait: ").append(waitTime);
+            sb.append("\nrun: ").append(runTime);
+            if (longestRunning != null) {
+                sb.append("\nlongest running: ").append(longestRunning);
+            }
+            return sb.toString();
+        }
+    }
+
+    // a queued task. ordered by priority, then by queued order
+    static class PriorityTask implements Runnable, Comparable<PriorityTask> {
+        final Runnable task;
+        final int priority;
+        final long sequence;
+        final Object tag;
+        final long queueTime = System.nanoTime();
+        volatile long startTime;
+        volatile Thread thread;
+        // set once it is reported by a watchdog
+        volatile boolean reported;
+
+        PriorityTask(Runnable task, int priority, long sequence, Object tag) {
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.tag = tag;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(PriorityTask another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.lx.mystalecode.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * author: liuxu
+ * date: 2016-04-11
+ *
+ * copy a large file so that an interrupted copy (app killed, card
+ * ejected) goes on from where it stopped, instead of from zero.
+ *
+ * the data is written to a part file next to the target, in fixed size
+ * chunks. after a chunk is synced, its index and CRC32 are appended to
+ * a small journal, and synced too. so every chunk in the journal is on
+ * disk. when the copy is started again with the same source, the last
+ * chunks in the journal are checked against the part file, and the copy
+ * goes on after the last one that matches. when all chunks are done,
+ * the part file is renamed to the target, the folder is synced, and the
+ * journal is deleted.
+ *
+ * the journal is dropped if the source has changed its length or last
+ * modified time, or the chunk size is different.
+ *
+ * files (for target "a.bin"):
+ *     .a.bin.part    - data copied so far
+ *     .a.bin.journal - header, then one record per chunk
+ *
+ * NOTE:
+ * copy() blocks, do not call it in main thread. every chunk is synced,
+ * so small chunks make the copy slow.
+ */
+public class ResumableCopier {
+
+    public static final String TAG = ResumableCopier.class.getSimpleName();
+
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAGIC = 0x52434a31; // "RCJ1"
+    // magic, source length, source last modified, chunk size
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 4;
+    // chunk index, crc
+    private static final int RECORD_SIZE = 4 + 4;
+
+    public interface ProgressListener {
+        /**
+         * called in the copying thread, after every chunk.
+         * @param src the file copied
+         * @param bytesDone bytes copied, including those of last copy
+         * @param totalBytes length of the file
+         */
+        void onProgress(File src, long bytesDone, long totalBytes);
+    }
+
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private ProgressListener mListener;
+    private volatile boolean mCancelled;
+    private long mResumedBytes;
+
+    /**
+     * @param chunkSize bytes between two syncs, also the most that is
+     *                  copied again after an interruption
+     */
+    public ResumableCopier setChunkSize(int chunkSize) {
+        mChunkSize = Math.max(BUFFER_SIZE, chunkSize);
+        return this;
+    }
+
+    public ResumableCopier setProgressListener(ProgressListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * stop after the chunk being copied. the part file and journal are
+     * kept, so that the copy can be resumed.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return bytes of the last copy() that were already copied before
+     */
+    public long getResumedBytes() {
+        return mResumedBytes;
+    }
+
+    /**
+     * @param dest the target file
+     * @return whether there is an unfinished copy to dest
+     */
+    public static boolean hasPartialCopy(File dest) {
+        return getJournalFile(dest).exists();
+    }
+
+    /**
+     * delete an unfinished copy to dest, so that the next copy starts
+     * from zero.
+     * @param dest the target file
+     */
+    public static void discardPartialCopy(File dest) {
+        getPartFile(dest).delete();
+        getJournalFile(dest).delete();
+    }
+
+    private static File getPartFile(File dest) {
+        return new File(dest.getParentFile(), "." + dest.getName() + ".part");
+    }
+
+    private static File getJournalFile(File dest) {
+        return new File(dest.getParentFile(), "." + dest.getName() + ".journal");
+    }
+
+    /**
+     * copy src to dest, resuming an unfinished copy if there is one.
+     * dest is replaced only when all data is copied.
+     * @param src the file to copy
+     * @param dest the target file
+     * @return true if done, false if cancelled
+     * @throws IOException if failed. the copy can be resumed later,
+     *                     unless src is gone.
+     */
+    public boolean copy(File src, File dest) throws IOException {
+        GlobalThreadManager.throwExceptionIfInMainThread("copy in main thread");
+        if (!src.isFile()) {
+            throw new IOException("not a file: " + src);
+        }
+        mResumedBytes = 0;
+        long length = src.length();
+        long lastModified = src.lastModified();
+        int chunks = (int) ((length + mChunkSize - 1) / mChunkSize);
+        File partFile = getPartFile(dest);
+        File journalFile = getJournalFile(dest);
+
+        RandomAccessFile in = new RandomAccessFile(src, "r");
+        RandomAccessFile part = null;
+        RandomAccessFile journal = null;
+        try {
+            part = new RandomAccessFile(partFile, "rw");
+            journal = new RandomAccessFile(journalFile, "rw");
+            int done = openJournal(journal, part, length, lastModified);
+            mResumedBytes = Math.min(length, (long) done * mChunkSize);
+
+            FileChannel inChannel = in.getChannel();
+            FileChannel partChannel = part.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            CRC32 crc = new CRC32();
+            for (int i = done; i < chunks; i++) {
+                if (mCancelled) {
+                    return false;
+                }
+                long position = (long) i * mChunkSize;
+                long count = Math.min(mChunkSize, length - position);
+                crc.reset();
+                copyChunk(inChannel, partChannel, position, count, buffer, crc);
+                // the data must be on disk before the journal says so
+                part.getFD().sync();
+                journal.writeInt(i);
+                journal.writeInt((int) crc.getValue());
+                journal.getFD().sync();
+                if (mListener != null) {
+                    mListener.onProgress(src, position + count, length);
+                }
+            }
+            part.setLength(length);
+            part.getFD().sync();
+        } finally {
+            FileUtils.closeSilently(in);
+            FileUtils.closeSilently(part);
+            FileUtils.closeSilently(journal);
+        }
+        if (!partFile.renameTo(dest)) {
+            throw new IOException("failed to rename " + partFile + " to " + dest);
+        }
+        // the rename must be on disk before the journal is gone
+        SyncGroup.syncDir(dest.getAbsoluteFile().getParentFile());
+        journalFile.delete();
+        return true;
+    }
+
+    // read or create the journal, leaving it at the end of verified
+    // records. returns number of chunks that need not be copied again.
+    private int openJournal(RandomAccessFile journal, RandomAccessFile part,
+                            long length, long lastModified) throws IOException {
+        int count = 0;
+        if (journal.length() >= HEADER_SIZE
+                && journal.readInt() == MAGIC
+                && journal.readLong() == length
+                && journal.readLong() == lastModified
+                && journal.readInt() == mChunkSize) {
+            // records are appended in order, a torn last record is ignored
+            long records = (journal.length() - HEADER_SIZE) / RECORD_SIZE;
+            int[] crcs = new int[(int) records];
+            while (count < records && journal.readInt() == count) {
+                crcs[count] = journal.readInt();
+                count++;
+            }
+            // checking the last chunk is enough, as it was synced after
+            // all chunks before it. go back if it does not match anyway.
+            while (count > 0 && !verifyChunk(part, count - 1, length, crcs[count - 1])) {
+                count--;
+            }
+        }
+        if (count == 0) {
+            journal.setLength(0);
+            journal.writeInt(MAGIC);
+            journal.writeLong(length);
+            journal.writeLong(lastModified);
+            journal.writeInt(mChunkSize);
+            part.setLength(0);
+        } else {
+            journal.setLength(HEADER_SIZE + (long) count * RECORD_SIZE);
+        }
+        journal.seek(journal.length());
+        journal.getFD().sync();
+        return count;
+    }
+
+    private boolean verifyChunk(RandomAccessFile part, int index,
+                                long length, int expected) throws IOException {
+        long position = (long) index * mChunkSize;
+        long count = Math.min(mChunkSize, length - position);
+        if (part.length() < position + count) {
+            return false;
+        }
+        FileChannel channel = part.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        CRC32 crc = new CRC32();
+        while (count > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count));
+            int n = channel.read(buffer, position);
+            if (n <= 0) {
+                return false;
+            }
+            crc.update(buffer.array(), 0, n);
+            position += n;
+            count -= n;
+        }
+        return (int) crc.getValue() == expected;
+    }
+
+    private static void copyChunk(FileChannel in, FileChannel out, long position, long count,
+                                  ByteBuffer buffer, CRC32 crc) throws IOException {
+        while (count > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count));
+            int n = in.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("source is shorter than expected");
+            }
+            crc.update(buffer.array(), 0, n);
+            buffer.flip();
+            long writePosition = position;
+            while (buffer.hasRemaining()) {
+                writePosition += out.write(buffer, writePosition);
+            }
+            position += n;
+            count -= n;
+        }
+    }
+}
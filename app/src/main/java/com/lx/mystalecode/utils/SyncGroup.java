@@ -0,0 +1,247 @@
+package com.lx.mystalecode.utils;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * author: liuxu
+ * date: 2016-04-10
+ *
+ * decide how files written by FileUtils.copyToFile() and TreeCopier are
+ * made durable.
+ *
+ * NONE  - never sync, the fastest. a crash may lose recent files, or
+ *         leave them empty.
+ * EACH  - sync every file when it is written, what copyToFile() always
+ *         did. safe, but every sync stalls on flash, which is ruinous for
+ *         thousands of small files.
+ * BATCH - sync nothing until commit(), then sync all files of the group.
+ *         the writes are done at full speed, and syncs of data already
+ *         written back by the kernel are cheap.
+ *
+ * atomic - a file is written to a temp file next to it, and renamed to
+ *          its name only after it is synced. the folder is synced after
+ *          the rename, so the new name is durable too. the target is
+ *          either the old file or the complete new one, never a half
+ *          written one. with BATCH, all renames are done in commit(),
+ *          after all syncs, and every folder is synced once.
+ *          with NONE nothing is synced, the rename only keeps readers
+ *          from seeing a half written file. after a crash the target
+ *          may be the old file, or the new one empty or partly written.
+ *
+ * NOTE:
+ * a folder can only be synced since Lollipop. before that the renames
+ * are done, but may be lost in a crash.
+ *
+ * usage:
+ *     SyncGroup group = new SyncGroup(SyncGroup.Mode.BATCH, true);
+ *     for (...) {
+ *         FileUtils.copyFile(src, dest, group);
+ *     }
+ *     group.commit();
+ *
+ * a group can be shared by several threads.
+ */
+public class SyncGroup {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    public enum Mode {
+        NONE, EACH, BATCH
+    }
+
+    private final Mode mMode;
+    private final boolean mAtomic;
+
+    // files written but not committed, guarded by itself
+    private final List<File[]> mPending = new ArrayList<File[]>();
+
+    /**
+     * @param mode when files are synced
+     * @param atomic whether files are written to a temp file first
+     */
+    public SyncGroup(Mode mode, boolean atomic) {
+        mMode = mode;
+        mAtomic = atomic;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    public boolean isAtomic() {
+        return mAtomic;
+    }
+
+    /**
+     * @param dest the target file
+     * @return the file to write data of dest to
+     */
+    public File getWriteFile(File dest) {
+        if (!mAtomic) {
+            return dest;
+        }
+        return new File(dest.getParentFile(), "." + dest.getName() + TEMP_SUFFIX);
+    }
+
+    /**
+     * called when all data is written, before the file is closed.
+     * @param fd descriptor of the file written
+     * @param file the file written, from getWriteFile()
+     * @param dest the target file
+     * @throws IOException if failed to sync or rename
+     */
+    public void onWritten(FileDescriptor fd, File file, File dest) throws IOException {
+        switch (mMode) {
+        case BATCH:
+            synchronized (mPending) {
+                mPending.add(new File[] { file, dest });
+            }
+            return;
+        case EACH:
+            fd.sync();
+            break;
+        default:
+            break;
+        }
+        if (file != dest) {
+            rename(file, dest);
+            if (mMode == Mode.EACH) {
+                syncDir(dest.getParentFile());
+            }
+        }
+    }
+
+    /**
+     * called when a file fails to be written.
+     * @param file the file written, from getWriteFile()
+     */
+    public void onFailed(File file) {
+        file.delete();
+    }
+
+    /**
+     * @return number of files waiting for commit()
+     */
+    public int getPendingCount() {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * sync all files written since last commit, then rename them to their
+     * targets and sync their folders if atomic. it does nothing unless the
+     * mode is BATCH.
+     * @throws IOException if any file failed to sync or rename. the other
+     *                     files are still committed.
+     */
+    public void commit() throws IOException {
+        File[][] pending;
+        synchronized (mPending) {
+            pending = mPending.toArray(new File[mPending.size()][]);
+            mPending.clear();
+        }
+        IOException error = null;
+        Set<File> dirs = new LinkedHashSet<File>();
+        for (File[] files : pending) {
+            try {
+                sync(files[0]);
+                if (files[0] != files[1]) {
+                    rename(files[0], files[1]);
+                    dirs.add(files[1].getParentFile());
+                }
+            } catch (IOException e) {
+                if (files[0] != files[1]) {
+                    files[0].delete();
+                }
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        // once per folder, after all renames in it
+        for (File dir : dirs) {
+            try {
+                syncDir(dir);
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * forget files written since last commit. temp files of an atomic
+     * group are deleted, so their targets are left as they were.
+     */
+    public void abort() {
+        File[][] pending;
+        synchronized (mPending) {
+            pending = mPending.toArray(new File[mPending.size()][]);
+            mPending.clear();
+        }
+        for (File[] files : pending) {
+            if (files[0] != files[1]) {
+                files[0].delete();
+            }
+        }
+    }
+
+    private static void sync(File file) throws IOException {
+        // fsync() works on a descriptor opened for reading
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    // make the entries of a folder durable, e.g. a rename done in it.
+    // also used by ResumableCopier
+    static void syncDir(File dir) throws IOException {
+        if (dir != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            syncDirLollipop(dir);
+        }
+    }
+
+    // java can not open a folder, Os.open() can
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void syncDirLollipop(File dir) throws IOException {
+        try {
+            FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+        } catch (ErrnoException e) {
+            throw new IOException("failed to sync " + dir, e);
+        }
+    }
+
+    // rename() replaces the target atomically
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            from.delete();
+            throw new IOException("failed to rename " + from + " to " + to);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.lx.mystalecode.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * author: liuxu
+ * date: 2016-03-24
+ *
+ * a cancellable task with completion callbacks, returned by
+ * GlobalThreadManager.submit() and friends.
+ *
+ * addCallback() gets the result or the exception of the task, in UI
+ * thread or in a background thread. then() chains another step onto the
+ * result, which returns a new TaskFuture, so that a background job and
+ * publishing its result in UI thread can be written as:
+ *
+ *     mFuture = GlobalThreadManager.submit(loadSomething)
+ *             .then(showIt, true);
+ *
+ * an exception thrown by any step skips the following steps and is
+ * passed to the callbacks of the last one.
+ *
+ * cancel() on a chained future cancels the steps it depends on as well,
+ * and callbacks of a cancelled future are never called. so the future
+ * of the last step is all that is needed to drop obsolete work, like a
+ * folder load the user navigated away from. long running tasks should
+ * check isCancelled() to stop early.
+ */
+public class TaskFuture<V> extends FutureTask<V> {
+
+    /**
+     * receives the result of a task. not called if it is cancelled.
+     */
+    public interface Callback<V> {
+        void onSuccess(V result);
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * a step chained by then().
+     */
+    public interface Continuation<V, R> {
+        R then(V result) throws Exception;
+    }
+
+    // callbacks and continuations to run when done, guarded by this
+    private List<Runnable> mListeners = new ArrayList<Runnable>(2);
+    // the step this one depends on, for then()
+    private volatile TaskFuture<?> mSource;
+
+    public TaskFuture(Callable<V> callable) {
+        super(callable);
+    }
+
+    public TaskFuture(Runnable runnable, V result) {
+        super(runnable, result);
+    }
+
+    /**
+     * call back when the task is done.
+     * @param callback the callback
+     * @param inUiThread true to call back in UI thread, false in a
+     *                   background thread, see dispatch()
+     * @return this
+     */
+    public TaskFuture<V> addCallback(final Callback<? super V> callback, final boolean inUiThread) {
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (isCancelled()) {
+                    return;
+                }
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isCancelled()) {
+                            // cancelled while waiting for the thread
+                            return;
+                        }
+                        Throwable error = getError();
+                        if (error != null) {
+                            callback.onFailure(error);
+                        } else {
+                            callback.onSuccess(getResult());
+                        }
+                    }
+                }, inUiThread);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * run another step with the result of this task, when it succeeds.
+     * @param continuation the step
+     * @param inUiThread true to run it in UI thread, false in a
+     *                   background thread, see dispatch()
+     * @return future of the step
+     */
+    public <R> TaskFuture<R> then(final Continuation<? super V, ? extends R> continuation,
+                                  final boolean inUiThread) {
+        final TaskFuture<R> next = new TaskFuture<R>(new Callable<R>() {
+            @Override
+            public R call() throws Exception {
+                return continuation.then(getResult());
+            }
+        });
+        next.mSource = this;
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (isCancelled()) {
+                    next.cancel(false);
+                    return;
+                }
+                Throwable error = getError();
+                if (error != null) {
+                    next.setException(error);
+                } else {
+                    dispatch(next, inUiThread);
+                }
+            }
+        });
+        return next;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        TaskFuture<?> source = mSource;
+        if (cancelled && source != null) {
+            source.cancel(mayInterruptIfRunning);
+        }
+        return cancelled;
+    }
+
+    @Override
+    protected void done() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            listeners = mListeners;
+            mListeners = null;
+        }
+        // callbacks may now run inline, one that throws must not keep
+        // the others from being called
+        RuntimeException error = null;
+        for (Runnable r : listeners) {
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void addListener(Runnable listener) {
+        synchronized (this) {
+            if (mListeners != null) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        // already done
+        listener.run();
+    }
+
+    // a background step runs right in the thread that finished the task,
+    // which saves a trip through the pool queue. it is only posted to the
+    // pool when the task is done (or the callback added) in main thread.
+    private static void dispatch(Runnable r, boolean inUiThread) {
+        if (inUiThread) {
+            GlobalThreadManager.runInUiThread(r);
+        } else if (!GlobalThreadManager.isInMainThread()) {
+            r.run();
+        } else {
+            GlobalThreadManager.runInThreadPool(r);
+        }
+    }
+
+    // result of a task that is done without error
+    private V getResult() {
+        try {
+            return get();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        } catch (ExecutionException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // error of a task that is done, or null
+    private Throwable getError() {
+        try {
+            get();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (CancellationException e) {
+            return e;
+        } catch (InterruptedException e) {
+            // never happens, the task is done
+            Thread.currentThread().interrupt();
+            return e;
+        }
+    }
+}
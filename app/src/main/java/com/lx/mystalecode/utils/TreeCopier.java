@@ -0,0 +1,590 @@
+package com.lx.mystalecode.utils;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * author: liuxu
+ * date: 2016-04-09
+ *
+ * copy a folder with everything in it, e.g. between internal storage and
+ * a volume from StorageManagerHack.
+ *
+ * the source is walked lazily with a FileWalker in the calling thread,
+ * which creates the folders and hands files to the io pool of
+ * GlobalThreadManager:
+ * small files - one task per file, several files are copied at a time,
+ *               which hides the latency of opening and syncing files.
+ * large files - split into chunks, each chunk is a task writing its own
+ *               range of the target, so one big file is not copied by a
+ *               single thread.
+ * the walk stops while too many bytes (or tasks) are in flight, so a
+ * huge tree never queues more than setMaxInFlightBytes() of work.
+ *
+ * the total size is counted by another walk in the io pool, so that the
+ * progress has an ETA once that walk is done.
+ *
+ * by default files are synced in a batch after all are written, see
+ * SyncGroup and setDurability().
+ *
+ * usage:
+ *     TreeCopier copier = new TreeCopier()
+ *             .setProgressListener(listener);
+ *     boolean done = copier.copy(srcDir, destDir); // false if cancelled
+ *
+ * NOTE:
+ * copy() blocks, do not call it in main thread. cancel() can be called in
+ * any thread. the file being copied when it fails or is cancelled is
+ * deleted (or with atomic durability, left as it was), files already
+ * copied are kept.
+ */
+public class TreeCopier {
+
+    public static final String TAG = TreeCopier.class.getSimpleName();
+
+    private static final long PROGRESS_INTERVAL = 200; // ms
+    private static final int DEFAULT_PARALLELISM = 4;
+    private static final long DEFAULT_LARGE_FILE = 4 * 1024 * 1024;
+    private static final long DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final long DEFAULT_MAX_IN_FLIGHT = 32 * 1024 * 1024;
+    private static final int CHUNK_BUFFER_SIZE = 256 * 1024;
+
+    public interface ProgressListener {
+        /**
+         * called in the thread calling copy(), at most once per 200ms, and
+         * once more when it is done.
+         */
+        void onProgress(Progress progress);
+    }
+
+    private int mParallelism = DEFAULT_PARALLELISM;
+    private long mLargeFile = DEFAULT_LARGE_FILE;
+    private long mChunkSize = DEFAULT_CHUNK_SIZE;
+    private long mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private SyncGroup.Mode mSyncMode = SyncGroup.Mode.BATCH;
+    private boolean mAtomic;
+    private ProgressListener mListener;
+
+    private volatile boolean mCancelled;
+    private SyncGroup mGroup;
+
+    // guarded by mLock
+    private final Object mLock = new Object();
+    private int mTasksInFlight;
+    private long mBytesInFlight;
+    private IOException mError;
+
+    private final AtomicLong mBytesDone = new AtomicLong();
+    private final AtomicInteger mFilesDone = new AtomicInteger();
+    private int mFilesFound;
+    private long mBytesFound;
+    private volatile int mTotalFiles = -1;
+    private volatile long mTotalBytes = -1;
+    private long mStartTime;
+    private long mLastProgress;
+    private File mCurrent;
+
+    /**
+     * @param parallelism max number of files or chunks copied at a time
+     */
+    public TreeCopier setParallelism(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * @param size files of this size or larger are copied in chunks
+     * @param chunkSize size of a chunk
+     */
+    public TreeCopier setLargeFile(long size, long chunkSize) {
+        mLargeFile = size;
+        mChunkSize = Math.max(CHUNK_BUFFER_SIZE, chunkSize);
+        return this;
+    }
+
+    /**
+     * @param bytes the walk waits when this many bytes are queued or being
+     *              copied. a single file larger than this is still copied.
+     */
+    public TreeCopier setMaxInFlightBytes(long bytes) {
+        mMaxInFlight = bytes;
+        return this;
+    }
+
+    /**
+     * @param mode when copied files are synced. with BATCH, they are synced
+     *             before copy() returns, even if it fails or is cancelled.
+     * @param atomic whether files are written to temp files and renamed
+     */
+    public TreeCopier setDurability(SyncGroup.Mode mode, boolean atomic) {
+        mSyncMode = mode;
+        mAtomic = atomic;
+        return this;
+    }
+
+    public TreeCopier setProgressListener(ProgressListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * stop copying. copy() returns false after the running tasks are done.
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * copy a folder or a file. a TreeCopier copies one tree at a time,
+     * and once cancelled, it stays cancelled.
+     * @param src folder or file to copy
+     * @param dest target, with the same structure as src. it is merged
+     *             into if it exists, files in it are overwritten.
+     * @return true if done, false if cancelled
+     * @throws IOException if any file fails to copy
+     */
+    public boolean copy(File src, File dest) throws IOException {
+        GlobalThreadManager.throwExceptionIfInMainThread("copy in main thread");
+        if (!src.exists()) {
+            throw new IOException("not found: " + src);
+        }
+        // canonical paths, so that a symlink like /sdcard is seen through.
+        // copying onto itself would truncate every file, copying into
+        // itself would walk into the folders it creates
+        String srcPath = src.getCanonicalPath();
+        String destPath = dest.getCanonicalPath();
+        if (destPath.equals(srcPath)) {
+            throw new IOException("cannot copy " + src + " onto itself: " + dest);
+        }
+        String srcPrefix = srcPath.endsWith(File.separator) ? srcPath : srcPath + File.separator;
+        if (destPath.startsWith(srcPrefix)) {
+            throw new IOException("cannot copy " + src + " into itself: " + dest);
+        }
+        reset();
+        if (src.isFile()) {
+            File parent = dest.getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            mTotalFiles = mFilesFound = 1;
+            mTotalBytes = mBytesFound = src.length();
+            submit(src, dest);
+        } else {
+            startCounting(src);
+            FileWalker walker = new FileWalker(src, null, 0, true);
+            int prefix = src.getPath().length();
+            while (walker.hasNext() && !mCancelled && getError() == null) {
+                File file = walker.next();
+                File target = new File(dest, file.getPath().substring(prefix));
+                if (file.isDirectory()) {
+                    if (!target.isDirectory() && !target.mkdirs()) {
+                        setError(new IOException("failed to create " + target));
+                    }
+                } else {
+                    mFilesFound++;
+                    mBytesFound += file.length();
+                    submit(file, target);
+                }
+                reportProgress(false);
+            }
+        }
+        awaitIdle();
+        try {
+            mGroup.commit();
+        } catch (IOException e) {
+            setError(e);
+        }
+        reportProgress(true);
+        IOException error = getError();
+        if (error != null) {
+            throw error;
+        }
+        return !mCancelled;
+    }
+
+    private void reset() {
+        synchronized (mLock) {
+            mTasksInFlight = 0;
+            mBytesInFlight = 0;
+            mError = null;
+        }
+        mGroup = new SyncGroup(mSyncMode, mAtomic);
+        mBytesDone.set(0);
+        mFilesDone.set(0);
+        mFilesFound = 0;
+        mBytesFound = 0;
+        mTotalFiles = -1;
+        mTotalBytes = -1;
+        mStartTime = SystemClock.elapsedRealtime();
+        mLastProgress = 0;
+        mCurrent = null;
+    }
+
+    // size the tree in the io pool, for the ETA
+    private void startCounting(final File src) {
+        GlobalThreadManager.runInIoPool(new Runnable() {
+            @Override
+            public void run() {
+                FileWalker walker = new FileWalker(src, null, 0, false);
+                int files = 0;
+                long bytes = 0;
+                while (walker.hasNext()) {
+                    if (mCancelled) {
+                        return;
+                    }
+                    File file = walker.next();
+                    if (file.isFile()) {
+                        files++;
+                        bytes += file.length();
+                    }
+                }
+                mTotalBytes = bytes;
+                mTotalFiles = files;
+            }
+        });
+    }
+
+    private void submit(File src, File dest) {
+        mCurrent = src;
+        long length = src.length();
+        if (length < mLargeFile) {
+            if (acquire(length)) {
+                GlobalThreadManager.runInIoPool(new FileTask(src, dest, length));
+            }
+            return;
+        }
+        LargeFile file;
+        try {
+            file = new LargeFile(src, dest, length);
+        } catch (IOException e) {
+            setError(e);
+            return;
+        }
+        for (long pos = 0; pos < length; pos += mChunkSize) {
+            long count = Math.min(mChunkSize, length - pos);
+            if (!acquire(count)) {
+                file.onChunkDone(false);
+                return;
+            }
+            file.mChunksLeft.incrementAndGet();
+            GlobalThreadManager.runInIoPool(new ChunkTask(file, pos, count));
+        }
+        file.onChunkDone(true);
+    }
+
+    // wait for room of a task, false if cancelled or failed
+    private boolean acquire(long bytes) {
+        while (true) {
+            synchronized (mLock) {
+                if (mCancelled || mError != null) {
+                    return false;
+                }
+                if (mTasksInFlight < mParallelism && (mBytesInFlight == 0
+                        || mBytesInFlight + bytes <= mMaxInFlight)) {
+                    mTasksInFlight++;
+                    mBytesInFlight += bytes;
+                    return true;
+                }
+                waitQuietly();
+            }
+            reportProgress(false);
+        }
+    }
+
+    private void release(long bytes) {
+        synchronized (mLock) {
+            mTasksInFlight--;
+            mBytesInFlight -= bytes;
+            mLock.notifyAll();
+        }
+    }
+
+    private void awaitIdle() {
+        while (true) {
+            synchronized (mLock) {
+                if (mTasksInFlight == 0) {
+                    return;
+                }
+                waitQuietly();
+            }
+            reportProgress(false);
+        }
+    }
+
+    // must be called with mLock held
+    private void waitQuietly() {
+        try {
+            mLock.wait(PROGRESS_INTERVAL);
+        } catch (InterruptedException e) {
+            // check again
+        }
+    }
+
+    private IOException getError() {
+        synchronized (mLock) {
+            return mError;
+        }
+    }
+
+    // only the first error is kept, it stops the copy
+    private void setError(IOException e) {
+        synchronized (mLock) {
+            if (mError == null) {
+                mError = e;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    private boolean isStopped() {
+        return mCancelled || getError() != null;
+    }
+
+    private void reportProgress(boolean end) {
+        if (mListener == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (!end && now - mLastProgress < PROGRESS_INTERVAL) {
+            return;
+        }
+        mLastProgress = now;
+        Progress p = new Progress();
+        p.current = end ? null : mCurrent;
+        p.filesDone = mFilesDone.get();
+        p.bytesDone = mBytesDone.get();
+        p.filesFound = mFilesFound;
+        p.bytesFound = mBytesFound;
+        p.totalFiles = mTotalFiles;
+        p.totalBytes = mTotalBytes;
+        p.elapsedMillis = now - mStartTime;
+        p.bytesPerSecond = p.elapsedMillis > 0 ? p.bytesDone * 1000 / p.elapsedMillis : 0;
+        if (end) {
+            p.etaMillis = 0;
+        } else if (p.totalBytes >= 0 && p.bytesPerSecond > 0) {
+            p.etaMillis = Math.max(0, p.totalBytes - p.bytesDone) * 1000 / p.bytesPerSecond;
+        } else {
+            p.etaMillis = -1;
+        }
+        mListener.onProgress(p);
+    }
+
+    private class FileTask implements Runnable {
+        private final File mSrc;
+        private final File mDest;
+        private final long mLength;
+
+        FileTask(File src, File dest, long length) {
+            mSrc = src;
+            mDest = dest;
+            mLength = length;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!isStopped()) {
+                    copyFile();
+                }
+            } catch (IOException e) {
+                setError(e);
+            } finally {
+                release(mLength);
+            }
+        }
+
+        private void copyFile() throws IOException {
+            File file = mGroup.getWriteFile(mDest);
+            FileInputStream in = new FileInputStream(mSrc);
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(file);
+                FileUtils.copyChannel(in.getChannel(), out.getChannel());
+                file.setLastModified(mSrc.lastModified());
+                mGroup.onWritten(out.getFD(), file, mDest);
+            } catch (IOException e) {
+                mGroup.onFailed(file);
+                throw e;
+            } finally {
+                FileUtils.closeSilently(in);
+                FileUtils.closeSilently(out);
+            }
+            mBytesDone.addAndGet(mLength);
+            mFilesDone.incrementAndGet();
+        }
+    }
+
+    // the target of a file copied in chunks, closed by its last chunk
+    private class LargeFile {
+        private final File mSrc;
+        private final File mDest;
+        // the file written, see SyncGroup.getWriteFile()
+        private final File mFile;
+        private final RandomAccessFile mOut;
+        // one more than the chunks running, held by the walk until all
+        // chunks are submitted
+        private final AtomicInteger mChunksLeft = new AtomicInteger(1);
+        private volatile boolean mFailed;
+
+        LargeFile(File src, File dest, long length) throws IOException {
+            mSrc = src;
+            mDest = dest;
+            mFile = mGroup.getWriteFile(dest);
+            mOut = new RandomAccessFile(mFile, "rw");
+            try {
+                mOut.setLength(length);
+            } catch (IOException e) {
+                FileUtils.closeSilently(mOut);
+                mGroup.onFailed(mFile);
+                throw e;
+            }
+        }
+
+        // a chunk is done, or will never be
+        void onChunkDone(boolean ok) {
+            if (!ok) {
+                mFailed = true;
+            }
+            if (mChunksLeft.decrementAndGet() != 0) {
+                return;
+            }
+            if (!mFailed) {
+                try {
+                    mFile.setLastModified(mSrc.lastModified());
+                    mGroup.onWritten(mOut.getFD(), mFile, mDest);
+                } catch (IOException e) {
+                    mFailed = true;
+                    setError(e);
+                }
+            }
+            FileUtils.closeSilently(mOut);
+            if (mFailed) {
+                mGroup.onFailed(mFile);
+            } else {
+                mFilesDone.incrementAndGet();
+            }
+        }
+    }
+
+    private class ChunkTask implements Runnable {
+        private final LargeFile mFile;
+        private final long mPosition;
+        private final long mCount;
+
+        ChunkTask(LargeFile file, long position, long count) {
+            mFile = file;
+            mPosition = position;
+            mCount = count;
+        }
+
+        @Override
+        public void run() {
+            boolean ok = false;
+            try {
+                if (!isStopped() && !mFile.mFailed) {
+                    ok = copyChunk();
+                }
+            } catch (IOException e) {
+                setError(e);
+            } finally {
+                mFile.onChunkDone(ok);
+                release(mCount);
+            }
+        }
+
+        // false if stopped in the middle
+        private boolean copyChunk() throws IOException {
+            FileInputStream in = new FileInputStream(mFile.mSrc);
+            try {
+                FileChannel src = in.getChannel();
+                FileChannel dest = mFile.mOut.getChannel();
+                src.position(mPosition);
+                long done = 0;
+                while (done < mCount) {
+                    // transferFrom() writes at the given position, so chunks
+                    // of a file do not share the position of the target
+                    long n = dest.transferFrom(src, mPosition + done, mCount - done);
+                    if (n <= 0) {
+                        break;
+                    }
+                    done += n;
+                    mBytesDone.addAndGet(n);
+                    if (isStopped()) {
+                        return false;
+                    }
+                }
+                if (done < mCount) {
+                    src.position(mPosition + done);
+                    copyRange(src, dest, mPosition + done, mCount - done);
+                }
+                return true;
+            } finally {
+                FileUtils.closeSilently(in);
+            }
+        }
+
+        // fallback if transferFrom() gives up, e.g. on some FUSE volumes
+        private void copyRange(FileChannel src, FileChannel dest,
+                               long position, long count) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BUFFER_SIZE);
+            while (count > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count));
+                int n = src.read(buffer);
+                if (n < 0) {
+                    throw new IOException("unexpected end of " + mFile.mSrc);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += dest.write(buffer, position);
+                }
+                count -= n;
+                mBytesDone.addAndGet(n);
+            }
+        }
+    }
+
+    /**
+     * a snapshot of the progress.
+     */
+    public static class Progress {
+        /** the file the walk is at, null when done */
+        public File current;
+        public int filesDone;
+        public long bytesDone;
+        /** files and bytes walked through so far */
+        public int filesFound;
+        public long bytesFound;
+        /** files and bytes of the whole tree, -1 until they are counted */
+        public int totalFiles;
+        public long totalBytes;
+        public long elapsedMillis;
+        /** average since the start */
+        public long bytesPerSecond;
+        /** estimated time left, -1 if unknown yet */
+        public long etaMillis;
+
+        @Override
+        public String toString() {
+            return "files=" + filesDone + "/" + (totalFiles >= 0 ? totalFiles : filesFound + "+")
+                    + " bytes=" + bytesDone + "/" + (totalBytes >= 0 ? totalBytes : bytesFound + "+")
+                    + " speed=" + bytesPerSecond / 1024 + "KB/s eta=" + etaMillis + "ms";
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.lx.mystalecode.utils;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * author: liuxu
+ * date: 2016-03-30
+ *
+ * run UI updates once per frame, keeping only the latest one per key.
+ *
+ * updates can be posted from any thread. an update replaces the pending
+ * one of the same key, so a background job can post its progress as
+ * often as it likes and the UI thread only runs the latest of it, once
+ * per frame. all pending updates are run together at the start of the
+ * next frame (Choreographer on API 16 and above, a 16ms Handler tick
+ * below), in the order their keys were first posted.
+ *
+ * a frame runs updates for at most the given time budget. the rest are
+ * left to the next frame, so that a burst never makes the UI drop frames.
+ *
+ * see GlobalThreadManager.runInUiThreadBatched().
+ */
+public class UiBatchDispatcher {
+
+    private static final long FRAME_INTERVAL = 16; // ms, below API 16
+    private static final long DEFAULT_BUDGET = 8; // ms
+
+    private final Handler mHandler;
+    private volatile long mBudgetNanos = DEFAULT_BUDGET * 1000000;
+
+    // guarded by itself
+    private final LinkedHashMap<Object, Runnable> mPending = new LinkedHashMap<Object, Runnable>();
+    private boolean mScheduled;
+
+    private Object mFrameCallback; // Choreographer.FrameCallback, API 16+
+
+    /**
+     * @param handler handler of main thread
+     */
+    public UiBatchDispatcher(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * @param millis max time a frame spends on updates
+     */
+    public void setFrameBudget(long millis) {
+        mBudgetNanos = Math.max(1, millis) * 1000000;
+    }
+
+    /**
+     * run the update in the next frame, replacing any pending update
+     * with the same key.
+     * @param key the key, compared with equals()
+     * @param update the update
+     */
+    public void post(Object key, Runnable update) {
+        synchronized (mPending) {
+            mPending.put(key, update);
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        scheduleFrame();
+    }
+
+    /**
+     * drop the pending update of the key, if any.
+     * @param key the key
+     */
+    public void cancel(Object key) {
+        synchronized (mPending) {
+            mPending.remove(key);
+        }
+    }
+
+    /**
+     * @return number of updates waiting for a frame
+     */
+    public int getPendingCount() {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    private void scheduleFrame() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // wait for the next 16ms tick, roughly a frame
+            long now = SystemClock.uptimeMillis();
+            mHandler.postAtTime(mDrainRunnable, now - now % FRAME_INTERVAL + FRAME_INTERVAL);
+        } else if (Looper.myLooper() == mHandler.getLooper()) {
+            postFrameCallback();
+        } else {
+            // Choreographer is per thread, post it from main thread
+            mHandler.post(mPostFrameRunnable);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if (mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    drain();
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+    private final Runnable mPostFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            postFrameCallback();
+        }
+    };
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // called in main thread, once a frame
+    private void drain() {
+        long deadline = System.nanoTime() + mBudgetNanos;
+        while (true) {
+            Runnable update;
+            synchronized (mPending) {
+                Iterator<Map.Entry<Object, Runnable>> it = mPending.entrySet().iterator();
+                if (!it.hasNext()) {
+                    mScheduled = false;
+                    return;
+                }
+                update = it.next().getValue();
+                it.remove();
+            }
+            update.run();
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+        // out of budget, the rest go to next frame
+        synchronized (mPending) {
+            if (mPending.isEmpty()) {
+                mScheduled = false;
+                return;
+            }
+        }
+        scheduleFrame();
+    }
+}
@@ -0,0 +1,313 @@
+package com.lx.mystalecode.utils;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * author: liuxu
+ * date: 2016-03-02
+ *
+ * pack a folder and all its sub folders into a zip file.
+ *
+ * the folder tree is walked lazily, one folder level at a time, so
+ * only the children of the folders on the current path are kept in
+ * memory. file data is pumped through one reusable buffer, and each
+ * input stream is closed as soon as its entry is written.
+ *
+ * every file is read once, STORED ones too: the crc is computed while
+ * the data is written, and patched into the local header afterwards,
+ * see ZipOutput.
+ *
+ * use CompressionPolicy to decide per entry whether the data should be
+ * DEFLATED or just STORED (jpg, mp4, etc. gain nothing from deflate).
+ * use ProgressListener to be informed of bytes done and speed.
+ *
+ * an instance is not thread safe, but can be reused for several zip()
+ * calls so that the buffer is allocated only once.
+ *
+ * see FileUtils.dir2zip() for a quick usage.
+ *
+ * NOTE:
+ * zip64 is not supported, entries and the zip file itself must be
+ * smaller than 4GB, and there can be no more than 65535 entries.
+ */
+public class ZipEngine {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // minimal interval between two progress callbacks, in millisecond
+    private static final long PROGRESS_INTERVAL = 200;
+
+    private int mBufferSize = DEFAULT_BUFFER_SIZE;
+    private int mLevel = Deflater.DEFAULT_COMPRESSION;
+    private CompressionPolicy mPolicy = POLICY_STORE_COMPRESSED;
+    private ProgressListener mListener;
+    private byte[] mBuffer;
+    private byte[] mDeflateBuffer;
+
+    // progress of the current zip() call
+    private long mStartTime;
+    private long mLastReportTime;
+    private long mBytesDone;
+
+    /**
+     * set size of the buffer used to copy file data.
+     * @param size buffer size in bytes
+     * @return this
+     */
+    public ZipEngine setBufferSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("invalid buffer size: " + size);
+        }
+        if (size != mBufferSize) {
+            mBufferSize = size;
+            mBuffer = null;
+            mDeflateBuffer = null;
+        }
+        return this;
+    }
+
+    /**
+     * set deflate level for DEFLATED entries.
+     * @param level 0-9, or Deflater.DEFAULT_COMPRESSION
+     * @return this
+     */
+    public ZipEngine setLevel(int level) {
+        mLevel = level;
+        return this;
+    }
+
+    /**
+     * decide whether an entry should be DEFLATED or STORED.
+     * POLICY_STORE_COMPRESSED is used by default.
+     * @param policy the policy. null for POLICY_DEFLATE_ALL
+     * @return this
+     */
+    public ZipEngine setCompressionPolicy(CompressionPolicy policy) {
+        mPolicy = policy == null ? POLICY_DEFLATE_ALL : policy;
+        return this;
+    }
+
+    /**
+     * @param listener callback for progress, can be null.
+     *                 note: it is invoked in the zipping thread.
+     * @return this
+     */
+    public ZipEngine setProgressListener(ProgressListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * pack everything under dir into zipFile. entry names are relative
+     * to dir. empty folders are kept as folder entries.
+     * @param dir the folder to zip
+     * @param zipFile the target zip file. if it is inside dir, it will
+     *                not be packed into itself.
+     * @throws IOException
+     */
+    public void zip(File dir, File zipFile) throws IOException {
+        if (!dir.isDirectory()) {
+            throw new IOException("not a dir: " + dir);
+        }
+        if (mBuffer == null) {
+            mBuffer = new byte[mBufferSize];
+            mDeflateBuffer = new byte[mBufferSize];
+        }
+        mStartTime = SystemClock.elapsedRealtime();
+        mLastReportTime = mStartTime;
+        mBytesDone = 0;
+
+        File target = zipFile.getAbsoluteFile();
+        ZipOutput out = new ZipOutput(target, mBufferSize);
+        Deflater deflater = new Deflater(mLevel, true);
+        try {
+            File current = null;
+            Deque<Level> stack = new ArrayDeque<Level>();
+            stack.push(new Level(dir.listFiles(), ""));
+            while (!stack.isEmpty()) {
+                Level level = stack.peek();
+                if (level.index >= level.files.length) {
+                    stack.pop();
+                    continue;
+                }
+                File f = level.files[level.index];
+                // release the reference as soon as possible
+                level.files[level.index++] = null;
+                String name = level.prefix + f.getName();
+                if (f.isDirectory()) {
+                    File[] children = f.listFiles();
+                    if (children == null || children.length == 0) {
+                        putDirEntry(out, f, name + "/");
+                    } else {
+                        stack.push(new Level(children, name + "/"));
+                    }
+                } else if (!f.getAbsoluteFile().equals(target)) {
+                    putFileEntry(out, deflater, f, name);
+                    current = f;
+                }
+            }
+            out.finish();
+            reportProgress(current, true);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private void putDirEntry(ZipOutput out, File dir, String name)
+            throws IOException {
+        ZipOutput.Header h = new ZipOutput.Header(name, true, dir.lastModified(), false);
+        out.writeLocalHeader(h);
+        out.writeCentralHeader(h);
+    }
+
+    private void putFileEntry(ZipOutput out, Deflater deflater, File file, String name)
+            throws IOException {
+        boolean deflate = mPolicy.getMethod(file) != ZipEntry.STORED;
+        ZipOutput.Header h = new ZipOutput.Header(name, false, file.lastModified(), deflate);
+        InputStream is = new FileInputStream(file);
+        try {
+            if (!deflate) {
+                // crc is patched later. so are the sizes if the file changes
+                h.size = file.length();
+                h.compressedSize = h.size;
+            }
+            out.writeLocalHeader(h);
+            CRC32 crc = new CRC32();
+            long size = 0;
+            int len;
+            while ((len = is.read(mBuffer)) != -1) {
+                crc.update(mBuffer, 0, len);
+                size += len;
+                if (deflate) {
+                    deflater.setInput(mBuffer, 0, len);
+                    while (!deflater.needsInput()) {
+                        writeDeflated(out, deflater);
+                    }
+                } else {
+                    out.write(mBuffer, 0, len);
+                }
+                mBytesDone += len;
+                reportProgress(file, false);
+            }
+            if (deflate) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    writeDeflated(out, deflater);
+                }
+                h.compressedSize = deflater.getBytesWritten();
+                deflater.reset();
+            } else {
+                h.compressedSize = size;
+            }
+            h.crc = crc.getValue();
+            h.size = size;
+        } finally {
+            is.close();
+        }
+        out.patchLocalHeader(h);
+        out.writeCentralHeader(h);
+    }
+
+    private void writeDeflated(ZipOutput out, Deflater deflater) throws IOException {
+        int n = deflater.deflate(mDeflateBuffer);
+        out.write(mDeflateBuffer, 0, n);
+    }
+
+    private void reportProgress(File file, boolean force) {
+        if (mListener == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (!force && now - mLastReportTime < PROGRESS_INTERVAL) {
+            return;
+        }
+        mLastReportTime = now;
+        long elapsed = now - mStartTime;
+        long speed = elapsed > 0 ? mBytesDone * 1000 / elapsed : 0;
+        mListener.onProgress(file, mBytesDone, speed);
+    }
+
+    // children of one folder on the current walking path
+    private static class Level {
+        final File[] files;
+        final String prefix;
+        int index;
+
+        Level(File[] files, String prefix) {
+            this.files = files == null ? new File[0] : files;
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * decide the compression method of each file entry.
+     */
+    public interface CompressionPolicy {
+
+        /**
+         * @param file the file to be packed
+         * @return ZipEntry.STORED or ZipEntry.DEFLATED
+         */
+        public int getMethod(File file);
+    }
+
+    /**
+     * progress of a zip operation.
+     */
+    public interface ProgressListener {
+
+        /**
+         * called periodically while zipping, and once when done.
+         * @param file the file being packed, can be null
+         * @param bytesDone bytes of file data packed so far
+         * @param bytesPerSecond average speed since zip begins
+         */
+        public void onProgress(File file, long bytesDone, long bytesPerSecond);
+    }
+
+    /**
+     * deflate every file.
+     */
+    public static final CompressionPolicy POLICY_DEFLATE_ALL = new CompressionPolicy() {
+
+        @Override
+        public int getMethod(File file) {
+            return ZipEntry.DEFLATED;
+        }
+    };
+
+    // suffixes of formats which are already compressed
+    private static final Set<String> COMPRESSED_SUFFIXES = new HashSet<String>(
+            Arrays.asList("jpg", "jpeg", "png", "gif", "webp", "mp3", "aac",
+                    "m4a", "ogg", "amr", "mp4", "3gp", "mkv", "webm", "avi",
+                    "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "apk", "jar"));
+
+    /**
+     * store files that are already compressed (media, archives), and
+     * deflate everything else.
+     */
+    public static final CompressionPolicy POLICY_STORE_COMPRESSED = new CompressionPolicy() {
+
+        @Override
+        public int getMethod(File file) {
+            String suffix = FileUtils.getFileSuffix(file).toLowerCase(Locale.US);
+            return COMPRESSED_SUFFIXES.contains(suffix) ?
+                    ZipEntry.STORED : ZipEntry.DEFLATED;
+        }
+    };
+}
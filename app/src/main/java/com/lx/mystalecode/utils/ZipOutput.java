@@ -0,0 +1,243 @@
+package com.lx.mystalecode.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.zip.ZipEntry;
+
+/**
+ * author: liuxu
+ * date: 2016-04-13
+ *
+ * the zip file format, shared by ZipEngine and ParallelZipWriter.
+ *
+ * entries are written one after another: writeLocalHeader(), the data,
+ * then writeCentralHeader(). when crc and sizes are not known before the
+ * data, the local header is written with what is known and patched by
+ * patchLocalHeader() afterwards, so the data is read only once and no
+ * data descriptor is needed, which STORED entries can not have. the
+ * header is patched in the output buffer if it is still there, or in
+ * the file otherwise.
+ *
+ * NOTE:
+ * zip64 is not supported, entries and the zip file itself must be
+ * smaller than 4GB, and there can be no more than 65535 entries.
+ */
+final class ZipOutput {
+
+    static final long ZIP32_LIMIT = 0xFFFFFFFFL;
+    static final int ZIP32_MAX_ENTRIES = 0xFFFF;
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_OF_CENTRAL_SIG = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int CRC_OFFSET_IN_LOCAL_HEADER = 14;
+
+    /**
+     * one entry. crc and sizes are set by the writer, before the local
+     * header if known, or before patching it otherwise.
+     */
+    static class Header {
+        final byte[] name;
+        final boolean isDir;
+        final long time;
+        boolean deflate;
+
+        long headerOffset;
+        long crc;
+        long size;
+        long compressedSize;
+
+        Header(String name, boolean isDir, long time, boolean deflate) {
+            this.name = utf8(name);
+            this.isDir = isDir;
+            this.time = time;
+            this.deflate = deflate;
+        }
+    }
+
+    private final FileOutputStream mFileStream;
+    private final byte[] mBuffer;
+    private int mCount;
+    // file position of mBuffer[0]
+    private long mFlushed;
+    private final ByteArrayOutputStream mCentral = new ByteArrayOutputStream();
+    private final byte[] mHeader = new byte[46];
+    private int mEntryCount;
+
+    ZipOutput(File target, int bufferSize) throws IOException {
+        mFileStream = new FileOutputStream(target);
+        mBuffer = new byte[bufferSize];
+    }
+
+    long getPosition() {
+        return mFlushed + mCount;
+    }
+
+    void writeLocalHeader(Header h) throws IOException {
+        h.headerOffset = getPosition();
+        if (h.headerOffset > ZIP32_LIMIT) {
+            throw new IOException("zip too large, zip64 is not supported");
+        }
+        byte[] b = mHeader;
+        putInt(b, 0, LOCAL_HEADER_SIG);
+        putShort(b, 4, VERSION);
+        putShort(b, 6, FLAG_UTF8);
+        putShort(b, 8, h.deflate ? ZipEntry.DEFLATED : ZipEntry.STORED);
+        putInt(b, 10, dosTime(h.time));
+        putInt(b, 14, h.crc);
+        putInt(b, 18, h.compressedSize);
+        putInt(b, 22, h.size);
+        putShort(b, 26, h.name.length);
+        putShort(b, 28, 0);
+        write(b, 0, 30);
+        write(h.name, 0, h.name.length);
+    }
+
+    void patchLocalHeader(Header h) throws IOException {
+        checkSizes(h);
+        byte[] patch = new byte[12];
+        putInt(patch, 0, h.crc);
+        putInt(patch, 4, h.compressedSize);
+        putInt(patch, 8, h.size);
+        long offset = h.headerOffset + CRC_OFFSET_IN_LOCAL_HEADER;
+        if (offset >= mFlushed) {
+            System.arraycopy(patch, 0, mBuffer, (int) (offset - mFlushed), patch.length);
+        } else {
+            // the header is already in the file, the stream position is
+            // not changed by a positional write
+            ByteBuffer bb = ByteBuffer.wrap(patch);
+            while (bb.hasRemaining()) {
+                mFileStream.getChannel().write(bb, offset + bb.position());
+            }
+        }
+    }
+
+    void writeCentralHeader(Header h) throws IOException {
+        checkSizes(h);
+        if (++mEntryCount > ZIP32_MAX_ENTRIES) {
+            throw new IOException("too many entries, zip64 is not supported");
+        }
+        byte[] b = mHeader;
+        putInt(b, 0, CENTRAL_HEADER_SIG);
+        putShort(b, 4, VERSION);
+        putShort(b, 6, VERSION);
+        putShort(b, 8, FLAG_UTF8);
+        putShort(b, 10, h.deflate ? ZipEntry.DEFLATED : ZipEntry.STORED);
+        putInt(b, 12, dosTime(h.time));
+        putInt(b, 16, h.crc);
+        putInt(b, 20, h.compressedSize);
+        putInt(b, 24, h.size);
+        putShort(b, 28, h.name.length);
+        // extra, comment, disk number, internal attributes are all 0
+        putShort(b, 30, 0);
+        putShort(b, 32, 0);
+        putShort(b, 34, 0);
+        putShort(b, 36, 0);
+        putInt(b, 38, h.isDir ? 0x10 : 0);
+        putInt(b, 42, h.headerOffset);
+        mCentral.write(b, 0, 46);
+        mCentral.write(h.name, 0, h.name.length);
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        if (len > mBuffer.length - mCount) {
+            flushBuffer();
+            if (len >= mBuffer.length) {
+                mFileStream.write(b, off, len);
+                mFlushed += len;
+                return;
+            }
+        }
+        System.arraycopy(b, off, mBuffer, mCount, len);
+        mCount += len;
+    }
+
+    /**
+     * write the central directory and the end record.
+     */
+    void finish() throws IOException {
+        long centralOffset = getPosition();
+        long centralSize = mCentral.size();
+        if (centralOffset + centralSize > ZIP32_LIMIT) {
+            throw new IOException("zip too large, zip64 is not supported");
+        }
+        byte[] central = mCentral.toByteArray();
+        write(central, 0, central.length);
+        byte[] end = new byte[22];
+        putInt(end, 0, END_OF_CENTRAL_SIG);
+        putShort(end, 8, mEntryCount);
+        putShort(end, 10, mEntryCount);
+        putInt(end, 12, centralSize);
+        putInt(end, 16, centralOffset);
+        write(end, 0, end.length);
+        flushBuffer();
+    }
+
+    void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            mFileStream.close();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            mFileStream.write(mBuffer, 0, mCount);
+            mFlushed += mCount;
+            mCount = 0;
+        }
+    }
+
+    private static void checkSizes(Header h) throws IOException {
+        if (h.size > ZIP32_LIMIT || h.compressedSize > ZIP32_LIMIT) {
+            throw new IOException("entry too large, zip64 is not supported: "
+                    + new String(h.name, "UTF-8"));
+        }
+    }
+
+    // =====================================================================
+    // helpers
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void putShort(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+    }
+
+    private static void putInt(byte[] b, int off, long v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+
+    // MS-DOS time in low 16 bits, date in high 16 bits
+    private static long dosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21)
+                | (c.get(Calendar.DAY_OF_MONTH) << 16)
+                | (c.get(Calendar.HOUR_OF_DAY) << 11)
+                | (c.get(Calendar.MINUTE) << 5)
+                | (c.get(Calendar.SECOND) >> 1);
+    }
+}
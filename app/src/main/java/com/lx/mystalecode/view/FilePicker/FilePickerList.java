@@ -1,9 +1,17 @@
 package com.lx.mystalecode.view.FilePicker;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Color;
+import android.os.Build;
 import android.os.Environment;
+import android.os.FileObserver;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.util.AttributeSet;
+import android.util.LruCache;
 import android.view.Gravity;
 import android.view.View;
 import android.view.ViewGroup;
@@ -18,12 +26,21 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.lx.mystalecode.R;
+import com.lx.mystalecode.utils.DirIndex;
+import com.lx.mystalecode.utils.GlobalThreadManager;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * author: liuxu
@@ -40,6 +57,19 @@ import java.util.Comparator;
  *
  * use FilePickerFilter to filter files.
  *
+ * use setSortMode() to sort files by name, size, date or type.
+ *
+ * call setAsyncLoading(true) to list and sort folders in background,
+ * so that big folders on slow storage do not block the UI thread.
+ * call setPagedLoading(true) to display huge folders page by page.
+ *
+ * call setThumbnailEnabled(true) to display thumbnails of images,
+ * they are loaded in background by ThumbnailLoader.
+ *
+ * sorted listings are kept in a LRU cache shared by all instances, so
+ * browsing back and forth is instant. a cached listing is dropped when
+ * its folder changes (FileObserver), or its mtime does not match.
+ *
  * you can also use FilePickerDialog to quick setup a simple file browser.
  * see FilePickerDialog for details.
  *
@@ -53,7 +83,8 @@ public class FilePickerList extends ListView
 
     // TODO:
     // this class file is independent to other files except for
-    // these three icon. maybe we should draw the icon by code instead.
+    // these three icon and GlobalThreadManager (for async loading).
+    // maybe we should draw the icon by code instead.
     private static final int DEFAULT_FOLDER_ICON = R.mipmap.ic_file_picker_folder;
     private static final int DEFAULT_FILE_ICON = R.mipmap.ic_file_picker_file;
     private static final int DEFAULT_BACK_ICON = R.mipmap.ic_file_picker_back;
@@ -61,6 +92,26 @@ public class FilePickerList extends ListView
     private static final int ITEM_BKG_COLOR_NORMAL = Color.TRANSPARENT;
     private static final int ITEM_BKG_COLOR_SELECTED = Color.GRAY;
 
+    /** sort by name, folders in front. this is the default */
+    public static final int SORT_BY_NAME = 0;
+    /** sort by size, biggest first, folders in front */
+    public static final int SORT_BY_SIZE = 1;
+    /** sort by last modified time, newest first, folders in front */
+    public static final int SORT_BY_DATE = 2;
+    /** sort by file suffix, then by name, folders in front */
+    public static final int SORT_BY_TYPE = 3;
+
+    // folders with more files than this are displayed page by page
+    // when paged loading is enabled
+    private static final int PAGING_THRESHOLD = 2000;
+
+    // max number of files in all cached listings
+    private static final int FOLDER_CACHE_SIZE = 20000;
+    private static final FolderCache sFolderCache = new FolderCache(FOLDER_CACHE_SIZE);
+
+    // shared by all instances, created when first needed
+    private static ThumbnailLoader sThumbnailLoader;
+
     private static final int ITEM_HEIGHT = 35; // in dp
     private static final int ITEM_ICON_PADDING = 5; // in dp
 
@@ -74,6 +125,17 @@ public class FilePickerList extends ListView
     private boolean mBackAsHeaderAdded = false;
     private FilePickerCallback mCallback;
 
+    private boolean mAsyncLoading = false;
+    private boolean mPagedLoading = false;
+    private boolean mFolderCacheEnabled = true;
+    private boolean mThumbnailEnabled = false;
+    private LoadTask mLoadTask;
+    // a load was cancelled, or a paged adapter released, when detached
+    // from window
+    private boolean mReloadOnAttach = false;
+    private int mSortMode = SORT_BY_NAME;
+    private DirIndex mDirIndex;
+
     public FilePickerList(Context context) {
         super(context);
         initView();
@@ -146,6 +208,112 @@ public class FilePickerList extends ListView
         mCallback = callback;
     }
 
+    /**
+     * list and sort folders in a background thread. a loading item is
+     * displayed until the folder is ready. a pending load is dropped
+     * when another folder is browsed.
+     * @param async true to load folders in background
+     */
+    public void setAsyncLoading(boolean async) {
+        mAsyncLoading = async;
+    }
+
+    /**
+     * display huge folders (tens of thousands of files) page by page.
+     * the folder is listed and sorted by name only, then displayed right
+     * away; file info is read in background for a window of items
+     * around the visible ones, and items are updated batch by batch.
+     * this implies async loading, and works with SORT_BY_NAME and
+     * SORT_BY_TYPE only. since folders can not be told from files
+     * before they are read, they are not moved in front in this mode.
+     * @param paged true to display huge folders page by page
+     */
+    public void setPagedLoading(boolean paged) {
+        mPagedLoading = paged;
+    }
+
+    /**
+     * display thumbnails instead of the file icon for image files.
+     * thumbnails are decoded and cached in background.
+     * @param enabled true to display thumbnails
+     */
+    public void setThumbnailEnabled(boolean enabled) {
+        mThumbnailEnabled = enabled;
+        if (mAdapter != null) {
+            mAdapter.mThumbnailLoader = getThumbnailLoader();
+            mAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * whether to use the folder cache. it is enabled by default.
+     * @param enabled false to always list folders from file system
+     */
+    public void setFolderCacheEnabled(boolean enabled) {
+        mFolderCacheEnabled = enabled;
+    }
+
+    /**
+     * list folders through a DirIndex. a folder under the root of the
+     * index is stat-ed only, and listed again only if it changed, and its
+     * files are not stat-ed at all. so refresh() of a big tree is cheap.
+     * call DirIndex.save() from time to time to keep what is listed.
+     * @param index the index, null to always list from file system
+     */
+    public void setDirIndex(DirIndex index) {
+        mDirIndex = index;
+    }
+
+    /**
+     * hit rate of the folder listing cache shared by all FilePickerList.
+     * an invalidated listing counts as a miss.
+     * @return hits / (hits + misses), 0 if nothing is looked up yet
+     */
+    public static float getFolderCacheHitRate() {
+        return sFolderCache.getHitRate();
+    }
+
+    /**
+     * @return hit, miss, invalidation and size info of the folder cache
+     */
+    public static String getFolderCacheStats() {
+        return sFolderCache.toString();
+    }
+
+    /**
+     * drop all cached folder listings.
+     */
+    public static void clearFolderCache() {
+        sFolderCache.evictAll();
+    }
+
+    /**
+     * set how files are sorted. folders are always displayed in front.
+     * the current folder is re-sorted from cached file info, without
+     * touching the file system again.
+     * @param mode one of SORT_BY_NAME, SORT_BY_SIZE, SORT_BY_DATE,
+     *             SORT_BY_TYPE
+     */
+    public void setSortMode(int mode) {
+        if (mode < SORT_BY_NAME || mode > SORT_BY_TYPE) {
+            throw new IllegalArgumentException("invalid sort mode: " + mode);
+        }
+        if (mode == mSortMode) {
+            return;
+        }
+        mSortMode = mode;
+        if (mAdapter instanceof PagedFileAdapter) {
+            // paging may or may not work with the new mode, load again
+            loadFolder(mCurrentFolder);
+        } else if (mAdapter != null && mAdapter.mEntries != null) {
+            FileEntry[] entries = mAdapter.mEntries;
+            sortEntries(entries, mode);
+            FileAdapter adapter = new FileAdapter(getContext(), entries);
+            adapter.setSelectedId(indexOf(entries, mFileSelected));
+            setFileAdapter(adapter);
+        }
+    }
+
     /**
      * call this to add a header view to this ListView.
      * the header view will serve as a "browse back" button.
@@ -183,6 +351,27 @@ public class FilePickerList extends ListView
 
     private void initView() {
         setOnItemClickListener(this);
+        setRecyclerListener(new RecyclerListener() {
+            @Override
+            public void onMovedToScrapHeap(View view) {
+                // the thumbnail is no longer needed by this view
+                if (sThumbnailLoader != null && view instanceof ItemView) {
+                    sThumbnailLoader.cancel(((ItemView) view).mIcon);
+                }
+            }
+        });
+    }
+
+    private ThumbnailLoader getThumbnailLoader() {
+        if (!mThumbnailEnabled) {
+            return null;
+        }
+        if (sThumbnailLoader == null) {
+            Context cxt = getContext();
+            int size = dip2px(cxt, ITEM_HEIGHT) - 2 * dip2px(cxt, ITEM_ICON_PADDING);
+            sThumbnailLoader = new ThumbnailLoader(cxt.getApplicationContext(), size);
+        }
+        return sThumbnailLoader;
     }
 
     // return true if the file is accepted
@@ -201,10 +390,8 @@ public class FilePickerList extends ListView
     }
 
     private void displayFolder(File folder) {
-        try {
-            mAdapter = new FileAdapter(getContext(), folder, mFilter);
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
+        if (!folder.isDirectory()) {
+            new IllegalArgumentException("not a folder: " + folder).printStackTrace();
             return;
         }
 
@@ -220,7 +407,111 @@ public class FilePickerList extends ListView
         if (mCallback != null) {
             mCallback.onBrowseFolder(folder.getAbsolutePath());
         }
-        setAdapter(mAdapter);
+        loadFolder(folder);
+    }
+
+    private void loadFolder(File folder) {
+        cancelLoading();
+        FileEntry[] cached = mFolderCacheEnabled ?
+                sFolderCache.get(folder, mFilter, mSortMode) : null;
+        if (cached != null) {
+            setFileAdapter(new FileAdapter(getContext(), cached));
+        } else if (mAsyncLoading || mPagedLoading) {
+            boolean paged = mPagedLoading &&
+                    (mSortMode == SORT_BY_NAME || mSortMode == SORT_BY_TYPE);
+            setFileAdapter(new FileAdapter(getContext(), null));
+            mLoadTask = new LoadTask(folder, mFilter, mSortMode, paged, mDirIndex);
+            // listing and stat block on storage, keep them off the shared pool
+            GlobalThreadManager.runInIoPool(mLoadTask);
+        } else {
+            FolderLoader loader = new FolderLoader(mFilter, mSortMode, mDirIndex);
+            FileEntry[] entries = loader.load(folder);
+            cacheFolder(folder, loader, entries);
+            setFileAdapter(new FileAdapter(getContext(), entries));
+        }
+    }
+
+    private void cacheFolder(File folder, FolderLoader loader, FileEntry[] entries) {
+        if (mFolderCacheEnabled) {
+            sFolderCache.put(folder, loader.mFilter, loader.mSortMode,
+                    loader.mFolderMtime, entries);
+        }
+    }
+
+    private void setFileAdapter(FileAdapter adapter) {
+        if (mAdapter != null) {
+            mAdapter.release();
+        }
+        mAdapter = adapter;
+        adapter.mThumbnailLoader = getThumbnailLoader();
+        setAdapter(adapter);
+    }
+
+    private void cancelLoading() {
+        if (mLoadTask != null) {
+            mLoadTask.cancel();
+            mLoadTask = null;
+        }
+    }
+
+    // called in UI thread when a folder is loaded in background
+    private void onFolderLoaded(LoadTask task, FileEntry[] entries) {
+        if (task != mLoadTask || task.isCancelled()) {
+            // user has browsed to another folder
+            return;
+        }
+        mLoadTask = null;
+        cacheFolder(task.mFolder, task.mLoader, entries);
+        if (task.mSortMode != mSortMode) {
+            // sort mode changed while loading
+            sortEntries(entries, mSortMode);
+        }
+        setFileAdapter(new FileAdapter(getContext(), entries));
+    }
+
+    // called in UI thread when a huge folder is listed for paging
+    private void onFolderPaged(LoadTask task, String[] names) {
+        if (task != mLoadTask || task.isCancelled()) {
+            return;
+        }
+        mLoadTask = null;
+        if (task.mSortMode != mSortMode) {
+            // sort mode changed while loading
+            loadFolder(task.mFolder);
+            return;
+        }
+        setFileAdapter(new PagedFileAdapter(getContext(), task.mFolder, names));
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mReloadOnAttach) {
+            // reused, e.g. by a ViewPager
+            mReloadOnAttach = false;
+            if (mAdapter instanceof PagedFileAdapter) {
+                // names are still good, only pages need to be read again
+                PagedFileAdapter paged = (PagedFileAdapter) mAdapter;
+                PagedFileAdapter adapter = new PagedFileAdapter(getContext(),
+                        paged.mFolder, paged.mNames);
+                adapter.setSelectedId(paged.getSelectedid());
+                setFileAdapter(adapter);
+            } else if (mCurrentFolder != null) {
+                loadFolder(mCurrentFolder);
+            }
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mLoadTask != null || mAdapter instanceof PagedFileAdapter) {
+            mReloadOnAttach = true;
+        }
+        cancelLoading();
+        if (mAdapter != null) {
+            mAdapter.release();
+        }
     }
 
     private void setItemSelected(int id, View selectedView) {
@@ -252,11 +543,16 @@ public class FilePickerList extends ListView
                 position -= 1;
             }
         }
-        File file;
+        FileEntry entry;
         if (mAdapter != null) {
-            file = mAdapter.getItem(position);
+            entry = mAdapter.getEntry(position);
+            if (entry == null) {
+                // folder is still loading
+                return;
+            }
+            File file = entry.file;
             boolean selected = setFileSelected(file);
-            if (file.isDirectory()) {
+            if (entry.isDir) {
                 displayFolder(file);
             } else {
                 if (selected) {
@@ -268,63 +564,510 @@ public class FilePickerList extends ListView
         }
     }
 
-    private static class FileAdapter extends BaseAdapter
-            implements FileFilter {
+    // list a folder in background, and publish the result in UI thread
+    private class LoadTask implements Runnable {
 
-        private FilePickerFilter mFilter;
-        private Context mContext;
-        private ArrayList<File> mFiles;
-        private int mSelectedId = -1;
+        private final File mFolder;
+        private final FolderLoader mLoader;
+        private final int mSortMode;
+        private final boolean mPaged;
 
-        public FileAdapter(Context context, File folder, FilePickerFilter filter) {
-            if (!folder.isDirectory()) {
-                throw new IllegalArgumentException("not a folder: " + folder);
+        LoadTask(File folder, FilePickerFilter filter, int sortMode, boolean paged,
+                 DirIndex index) {
+            mFolder = folder;
+            mLoader = new FolderLoader(filter, sortMode, index);
+            mSortMode = sortMode;
+            mPaged = paged;
+        }
+
+        void cancel() {
+            mLoader.mCancelled = true;
+        }
+
+        boolean isCancelled() {
+            return mLoader.mCancelled;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled()) {
+                return;
             }
-            mContext = context;
+            final FileEntry[] entries;
+            if (mPaged) {
+                final String[] names = mLoader.loadNames(mFolder);
+                if (names == null) {
+                    return;
+                }
+                if (names.length > PAGING_THRESHOLD) {
+                    GlobalThreadManager.runInUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            onFolderPaged(LoadTask.this, names);
+                        }
+                    });
+                    return;
+                }
+                // not that big, read everything
+                entries = mLoader.load(mFolder, names);
+            } else {
+                entries = mLoader.load(mFolder);
+            }
+            if (isCancelled()) {
+                return;
+            }
+            GlobalThreadManager.runInUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    onFolderLoaded(LoadTask.this, entries);
+                }
+            });
+        }
+    }
+
+    // info of a file, taken once when the folder is listed, so that
+    // sorting and binding views do not stat the file again
+    private static class FileEntry {
+        final File file;
+        final boolean isDir;
+        final long size;
+        final long mtime;
+        final CollationKey nameKey;
+        final String suffix;
+
+        FileEntry(File file, boolean isDir, long size, long mtime, Collator collator) {
+            this.file = file;
+            this.isDir = isDir;
+            this.size = size;
+            this.mtime = mtime;
+            String name = file.getName();
+            this.nameKey = collator != null ? collator.getCollationKey(name) : null;
+            int dot = name.lastIndexOf('.');
+            this.suffix = (isDir || dot <= 0) ?
+                    "" : name.substring(dot + 1).toLowerCase(Locale.getDefault());
+        }
+
+        // one stat() for all we need since Lollipop, three before.
+        // collator can be null if the entry is not to be sorted
+        static FileEntry create(File file, Collator collator) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                FileEntry entry = createByStat(file, collator);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            boolean isDir = file.isDirectory();
+            return new FileEntry(file, isDir, isDir ? 0 : file.length(),
+                    file.lastModified(), collator);
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        private static FileEntry createByStat(File file, Collator collator) {
+            try {
+                StructStat st = Os.stat(file.getPath());
+                boolean isDir = OsConstants.S_ISDIR(st.st_mode);
+                return new FileEntry(file, isDir, isDir ? 0 : st.st_size,
+                        st.st_mtime * 1000, collator);
+            } catch (ErrnoException e) {
+                return null;
+            }
+        }
+    }
+
+    private static int indexOf(FileEntry[] entries, File file) {
+        if (file != null) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].file.equals(file)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static void sortEntries(FileEntry[] entries, final int mode) {
+        Arrays.sort(entries, new Comparator<FileEntry>() {
+            @Override
+            public int compare(FileEntry e1, FileEntry e2) {
+                // folder will always displayed in front
+                if (e1.isDir != e2.isDir) {
+                    return e1.isDir ? -1 : 1;
+                }
+                int result = 0;
+                switch (mode) {
+                case SORT_BY_SIZE:
+                    result = compareLong(e2.size, e1.size);
+                    break;
+                case SORT_BY_DATE:
+                    result = compareLong(e2.mtime, e1.mtime);
+                    break;
+                case SORT_BY_TYPE:
+                    result = e1.suffix.compareTo(e2.suffix);
+                    break;
+                }
+                if (result == 0) {
+                    result = e1.nameKey.compareTo(e2.nameKey);
+                }
+                return result;
+            }
+        });
+    }
+
+    private static int compareLong(long l1, long l2) {
+        return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+    }
+
+    // list and sort a folder. can be used in any thread.
+    private static class FolderLoader implements FileFilter {
+
+        private final FilePickerFilter mFilter;
+        private final int mSortMode;
+        // can be null
+        private final DirIndex mIndex;
+        volatile boolean mCancelled = false;
+        // taken before listing, so that a change during listing is
+        // detected by FolderCache later
+        long mFolderMtime;
+
+        FolderLoader(FilePickerFilter filter, int sortMode, DirIndex index) {
             mFilter = filter;
-            initList(folder);
+            mSortMode = sortMode;
+            mIndex = index;
         }
 
-        private void initList(File folder) {
-            File[] files = folder.listFiles(this);
+        FileEntry[] load(File folder) {
+            mFolderMtime = folder.lastModified();
+            File[] files = mIndex != null ? mIndex.listFilesChecked(folder, this) : null;
             if (files == null) {
-                return;
+                // no index, or folder not under its root
+                files = folder.listFiles(this);
+            }
+            if (mCancelled) {
+                return null;
+            }
+            return toEntries(files);
+        }
+
+        FileEntry[] load(File folder, String[] names) {
+            File[] files = new File[names.length];
+            for (int i = 0; i < names.length; i++) {
+                files[i] = new File(folder, names[i]);
+            }
+            return toEntries(files);
+        }
+
+        // list names of displayed files only, and sort them without stat
+        String[] loadNames(File folder) {
+            mFolderMtime = folder.lastModified();
+            String[] names = folder.list();
+            if (mCancelled) {
+                return null;
+            }
+            if (names == null) {
+                return new String[0];
+            }
+            Collator collator = Collator.getInstance();
+            List<NameKey> keys = new ArrayList<NameKey>(names.length);
+            for (String name : names) {
+                if (accept(new File(folder, name))) {
+                    keys.add(new NameKey(name, collator));
+                }
             }
-            mFiles = new ArrayList<File>(files.length);
-            for (File f : files) {
-                mFiles.add(f);
+            if (mCancelled) {
+                return null;
             }
-            Collections.sort(mFiles, new Comparator<File>() {
+            final boolean byType = (mSortMode == SORT_BY_TYPE);
+            Collections.sort(keys, new Comparator<NameKey>() {
                 @Override
-                public int compare(File f1, File f2) {
-                    // folder will always displayed in front
-                    if (f1.isDirectory() && !f2.isDirectory()) {
-                        return -1;
-                    } else if (!f1.isDirectory() && f2.isDirectory()) {
-                        return 1;
-                    } else {
-                        return f1.compareTo(f2);
-                    }
+                public int compare(NameKey k1, NameKey k2) {
+                    int result = byType ? k1.suffix.compareTo(k2.suffix) : 0;
+                    return result != 0 ? result : k1.key.compareTo(k2.key);
                 }
             });
+            String[] sorted = new String[keys.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = keys.get(i).key.getSourceString();
+            }
+            return sorted;
+        }
+
+        private FileEntry[] toEntries(File[] files) {
+            if (files == null) {
+                return new FileEntry[0];
+            }
+            Collator collator = Collator.getInstance();
+            FileEntry[] entries = new FileEntry[files.length];
+            for (int i = 0; i < files.length; i++) {
+                if (mCancelled) {
+                    return null;
+                }
+                File f = files[i];
+                // info of an indexed file is known, no stat needed
+                entries[i] = f instanceof DirIndex.IndexedFile ?
+                        new FileEntry(f, f.isDirectory(), f.length(), f.lastModified(), collator) :
+                        FileEntry.create(f, collator);
+            }
+            sortEntries(entries, mSortMode);
+            return entries;
+        }
+
+        @Override
+        public boolean accept(File file) {
+            if (mCancelled) {
+                // no need to check the rest
+                return false;
+            }
+            if (mFilter != null) {
+                return mFilter.canBeDisplayed(file);
+            } else {
+                // use FILTER_NORMAL_ALL by default
+                // see commit on FILTER_NORMAL_ALL for details
+                return FILTER_NORMAL_ALL.canBeDisplayed(file);
+            }
+        }
+    }
+
+    // LRU cache of sorted folder listings, keyed by folder and filter,
+    // bounded by total number of files.
+    // before Android Q all FileObserver of a path share one inotify watch,
+    // and stopping any of them stops all. so there is one observer per
+    // path, shared by all listings of it and stopped with the last one.
+    private static class FolderCache extends LruCache<FolderCache.Key, FolderCache.Listing> {
+
+        private static final int OBSERVER_MASK = FileObserver.CREATE | FileObserver.DELETE
+                | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.MODIFY
+                | FileObserver.ATTRIB | FileObserver.CLOSE_WRITE
+                | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+        private final AtomicInteger mHits = new AtomicInteger();
+        private final AtomicInteger mMisses = new AtomicInteger();
+        private final AtomicInteger mInvalidations = new AtomicInteger();
+        // guarded by itself
+        private final HashMap<String, Watch> mWatches = new HashMap<String, Watch>();
+
+        FolderCache(int maxFiles) {
+            super(maxFiles);
+        }
+
+        // returns a sorted copy, or null if not cached or out of date
+        FileEntry[] get(File folder, FilePickerFilter filter, int sortMode) {
+            Key key = new Key(folder.getAbsolutePath(), filter);
+            Listing listing = get(key);
+            if (listing != null && (listing.version != listing.watch.version.get()
+                    || listing.mtime != folder.lastModified())) {
+                remove(key);
+                mInvalidations.incrementAndGet();
+                listing = null;
+            }
+            if (listing == null) {
+                mMisses.incrementAndGet();
+                return null;
+            }
+            mHits.incrementAndGet();
+            FileEntry[] entries = listing.entries.clone();
+            if (listing.sortMode != sortMode) {
+                sortEntries(entries, sortMode);
+            }
+            return entries;
+        }
+
+        void put(File folder, FilePickerFilter filter, int sortMode,
+                 long mtime, FileEntry[] entries) {
+            if (entries == null || entries.length >= maxSize()) {
+                return;
+            }
+            Key key = new Key(folder.getAbsolutePath(), filter);
+            Listing listing = new Listing(entries.clone(), sortMode, mtime);
+            Watch watch;
+            synchronized (mWatches) {
+                watch = mWatches.get(key.path);
+                if (watch == null) {
+                    watch = new Watch(key.path);
+                    mWatches.put(key.path, watch);
+                }
+                // taken before put(), so that a listing of the same key
+                // replaced by it does not stop the watch
+                watch.refs++;
+                listing.watch = watch;
+                listing.version = watch.version.get();
+            }
+            put(key, listing);
+            synchronized (mWatches) {
+                // start only once it is in the cache
+                if (!watch.started && watch.refs > 0) {
+                    watch.started = true;
+                    watch.observer.startWatching();
+                }
+            }
+        }
+
+        float getHitRate() {
+            int hits = mHits.get();
+            int total = hits + mMisses.get();
+            return total == 0 ? 0 : (float) hits / total;
+        }
+
+        @Override
+        protected int sizeOf(Key key, Listing listing) {
+            return listing.entries.length + 1;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, Key key,
+                                    Listing oldValue, Listing newValue) {
+            synchronized (mWatches) {
+                Watch watch = oldValue.watch;
+                if (--watch.refs == 0) {
+                    if (watch.started) {
+                        watch.observer.stopWatching();
+                    }
+                    mWatches.remove(watch.path);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "FolderCache[hits=" + mHits.get() + ", misses=" + mMisses.get()
+                    + ", invalidations=" + mInvalidations.get()
+                    + ", folders=" + snapshot().size()
+                    + ", files=" + size() + "/" + maxSize() + "]";
+        }
+
+        static class Key {
+            final String path;
+            final FilePickerFilter filter;
+
+            Key(String path, FilePickerFilter filter) {
+                this.path = path;
+                this.filter = filter;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Key)) {
+                    return false;
+                }
+                Key other = (Key) o;
+                return path.equals(other.path) && filter == other.filter;
+            }
+
+            @Override
+            public int hashCode() {
+                return path.hashCode() * 31 + System.identityHashCode(filter);
+            }
+        }
+
+        // one observer of a path, counted by listings using it
+        static class Watch {
+            final String path;
+            // changed by every event, a listing is out of date if it has
+            // another version
+            final AtomicInteger version = new AtomicInteger();
+            final FileObserver observer;
+            // guarded by mWatches
+            int refs;
+            boolean started;
+
+            Watch(String path) {
+                this.path = path;
+                observer = new FileObserver(path, OBSERVER_MASK) {
+                    @Override
+                    public void onEvent(int event, String path) {
+                        // called in FileObserver's thread
+                        version.incrementAndGet();
+                    }
+                };
+            }
+        }
+
+        static class Listing {
+            final FileEntry[] entries;
+            final int sortMode;
+            final long mtime;
+            Watch watch;
+            int version;
+
+            Listing(FileEntry[] entries, int sortMode, long mtime) {
+                this.entries = entries;
+                this.sortMode = sortMode;
+                this.mtime = mtime;
+            }
+        }
+    }
+
+    private static class NameKey {
+        final CollationKey key;
+        final String suffix;
+
+        NameKey(String name, Collator collator) {
+            key = collator.getCollationKey(name);
+            int dot = name.lastIndexOf('.');
+            suffix = dot <= 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.getDefault());
+        }
+    }
+
+    private static class FileAdapter extends BaseAdapter {
+
+        private Context mContext;
+        private FileEntry[] mEntries;
+        private boolean mLoading;
+        private int mSelectedId = -1;
+        // null if thumbnails are not displayed
+        ThumbnailLoader mThumbnailLoader;
+
+        /**
+         * @param entries sorted files to display, null if the folder is
+         *                still loading
+         */
+        public FileAdapter(Context context, FileEntry[] entries) {
+            mContext = context;
+            mEntries = entries;
+            mLoading = (entries == null);
         }
 
         public void setSelectedId(int id) {
             mSelectedId = id;
         }
 
+        // called when the adapter is no longer used
+        public void release() {
+        }
+
+        // entry to display, null if it is not ready yet
+        public FileEntry peekEntry(int position) {
+            return getEntry(position);
+        }
+
+        public String getName(int position) {
+            FileEntry entry = getEntry(position);
+            return entry != null ? entry.file.getName() : null;
+        }
+
         public int getSelectedid() {
             return mSelectedId;
         }
 
         @Override
         public int getCount() {
-            return mFiles != null ? mFiles.size() : 0;
+            if (mLoading) {
+                // the loading item
+                return 1;
+            }
+            return mEntries != null ? mEntries.length : 0;
         }
 
         @Override
         public File getItem(int position) {
-            return mFiles != null ? mFiles.get(position) : null;
+            FileEntry entry = getEntry(position);
+            return entry != null ? entry.file : null;
+        }
+
+        public FileEntry getEntry(int position) {
+            if (mLoading) {
+                return null;
+            }
+            return mEntries != null ? mEntries[position] : null;
         }
 
         @Override
@@ -332,14 +1075,36 @@ public class FilePickerList extends ListView
             return position;
         }
 
+        @Override
+        public boolean isEnabled(int position) {
+            return !mLoading;
+        }
+
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             if (convertView == null) {
                 convertView = new ItemView(mContext);
             }
-            File file = getItem(position);
             ItemView view = (ItemView) convertView;
-            view.setData(file);
+            if (mLoading) {
+                view.setLoading();
+                view.setId(View.NO_ID);
+                view.setBackgroundColor(ITEM_BKG_COLOR_NORMAL);
+                return view;
+            }
+            FileEntry entry = peekEntry(position);
+            if (entry != null) {
+                view.setData(entry);
+            } else {
+                view.setPending(getName(position));
+            }
+            if (mThumbnailLoader != null) {
+                if (entry != null && !entry.isDir && ThumbnailLoader.isImage(entry.file)) {
+                    mThumbnailLoader.load(entry.file, entry.mtime, view.mIcon);
+                } else {
+                    mThumbnailLoader.cancel(view.mIcon);
+                }
+            }
             view.setId(position);
             if (position == mSelectedId) {
                 view.setBackgroundColor(ITEM_BKG_COLOR_SELECTED);
@@ -348,15 +1113,123 @@ public class FilePickerList extends ListView
             }
             return view;
         }
+    }
+
+    // display a huge folder. only names of all files are kept, file info
+    // is read page by page in background into a window of entries.
+    private static class PagedFileAdapter extends FileAdapter {
+
+        private static final int PAGE_SIZE = 128;
+        // entries are cached by (position % WINDOW_SIZE), so the cache
+        // always covers the window around the recently displayed items
+        private static final int WINDOW_SIZE = 1024;
+
+        private final File mFolder;
+        private final String[] mNames;
+        private final FileEntry[] mWindow = new FileEntry[WINDOW_SIZE];
+        private final int[] mWindowPositions = new int[WINDOW_SIZE];
+
+        // only one page is read at a time
+        private boolean mPageLoading = false;
+        private int mRequestedPosition = -1;
+        private volatile boolean mReleased = false;
+
+        public PagedFileAdapter(Context context, File folder, String[] names) {
+            super(context, new FileEntry[0]);
+            mFolder = folder;
+            mNames = names;
+            Arrays.fill(mWindowPositions, -1);
+        }
 
         @Override
-        public boolean accept(File file) {
-            if (mFilter != null) {
-                return mFilter.canBeDisplayed(file);
-            } else {
-                // use FILTER_NORMAL_ALL by default
-                // see commit on FILTER_NORMAL_ALL for details
-                return FILTER_NORMAL_ALL.canBeDisplayed(file);
+        public void release() {
+            mReleased = true;
+        }
+
+        @Override
+        public int getCount() {
+            return mNames.length;
+        }
+
+        @Override
+        public String getName(int position) {
+            return mNames[position];
+        }
+
+        @Override
+        public FileEntry peekEntry(int position) {
+            FileEntry entry = getCached(position);
+            if (entry == null) {
+                requestPage(position);
+            }
+            return entry;
+        }
+
+        // the item is clicked, stat it right now if not ready
+        @Override
+        public FileEntry getEntry(int position) {
+            FileEntry entry = getCached(position);
+            if (entry == null) {
+                entry = FileEntry.create(new File(mFolder, mNames[position]), null);
+                putCached(position, entry);
+            }
+            return entry;
+        }
+
+        private FileEntry getCached(int position) {
+            int slot = position % WINDOW_SIZE;
+            return mWindowPositions[slot] == position ? mWindow[slot] : null;
+        }
+
+        private void putCached(int position, FileEntry entry) {
+            int slot = position % WINDOW_SIZE;
+            mWindowPositions[slot] = position;
+            mWindow[slot] = entry;
+        }
+
+        private void requestPage(int position) {
+            mRequestedPosition = position;
+            if (mPageLoading || mReleased) {
+                // will be checked when current page is done
+                return;
+            }
+            mPageLoading = true;
+            // read mostly forward, the way the list is usually scrolled
+            final int start = Math.max(0, position - PAGE_SIZE / 4);
+            final int end = Math.min(mNames.length, start + PAGE_SIZE);
+            GlobalThreadManager.runInIoPool(new Runnable() {
+                @Override
+                public void run() {
+                    final FileEntry[] page = new FileEntry[end - start];
+                    for (int i = 0; i < page.length && !mReleased; i++) {
+                        page[i] = FileEntry.create(
+                                new File(mFolder, mNames[start + i]), null);
+                    }
+                    GlobalThreadManager.runInUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            onPageLoaded(start, page);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void onPageLoaded(int start, FileEntry[] page) {
+            mPageLoading = false;
+            if (mReleased) {
+                return;
+            }
+            for (int i = 0; i < page.length; i++) {
+                if (page[i] != null) {
+                    putCached(start + i, page[i]);
+                }
+            }
+            notifyDataSetChanged();
+            int requested = mRequestedPosition;
+            if (requested >= 0 && getCached(requested) == null) {
+                // user scrolled away while the page was read
+                requestPage(requested);
             }
         }
     }
@@ -410,13 +1283,24 @@ public class FilePickerList extends ListView
             this.addViewInLayout(mCheck, -1, params);
         }
 
-        public void setData(File file) {
-            if (file != null) {
-                mIcon.setImageResource(file.isDirectory() ?
+        public void setData(FileEntry entry) {
+            if (entry != null) {
+                mIcon.setVisibility(View.VISIBLE);
+                mIcon.setImageResource(entry.isDir ?
                         DEFAULT_FOLDER_ICON : DEFAULT_FILE_ICON);
-                mName.setText(file.getName());
+                mName.setText(entry.file.getName());
             }
         }
+
+        public void setLoading() {
+            setPending("Loading...");
+        }
+
+        // file info is not ready yet
+        public void setPending(String name) {
+            mIcon.setVisibility(View.INVISIBLE);
+            mName.setText(name);
+        }
     }
 
     private static int dip2px(Context context, float dpValue) {
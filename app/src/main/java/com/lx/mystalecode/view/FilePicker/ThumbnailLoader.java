@@ -0,0 +1,334 @@
+package com.lx.mystalecode.view.FilePicker;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * author: liuxu
+ * date: 2016-03-18
+ *
+ * load thumbnails of image files into ImageViews in background.
+ *
+ * images are decoded with inSampleSize so that only about the size of
+ * the thumbnail is read into memory, in a pool of two low priority
+ * threads. decoded thumbnails are kept in a memory LRU cache, and
+ * saved to a disk cache under the app's cache dir, so that they are
+ * not decoded again from the original image next time.
+ *
+ * a view can be bound to only one image: loading another image, or
+ * calling cancel() when the view is recycled, drops the old request,
+ * and a request no view is waiting for is cancelled. requests for the
+ * same image are merged into one.
+ *
+ * all methods should be called in main thread.
+ *
+ * used by FilePickerList, see FilePickerList.setThumbnailEnabled().
+ */
+public class ThumbnailLoader {
+
+    private static final int THREAD_COUNT = 2;
+    private static final int MEMORY_CACHE_DIVIDER = 8; // of max heap
+    private static final long DISK_CACHE_SIZE = 20 * 1024 * 1024;
+    private static final int DISK_TRIM_INTERVAL = 64; // in writes
+    private static final String DISK_CACHE_DIR = "file_picker_thumbs";
+
+    private static final Set<String> IMAGE_SUFFIXES = new HashSet<String>(
+            Arrays.asList("jpg", "jpeg", "png", "gif", "webp", "bmp"));
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ThumbnailLoader#" + mCount.getAndIncrement());
+        }
+    };
+
+    private final int mSize;
+    private final File mDiskCacheDir;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    // pending requests, by cache key. only touched in main thread
+    private final Map<String, Request> mRequests = new HashMap<String, Request>();
+    private final AtomicInteger mDiskWrites = new AtomicInteger();
+
+    /**
+     * @param context context
+     * @param size width and height of thumbnails, in pixel
+     */
+    public ThumbnailLoader(Context context, int size) {
+        mSize = size;
+        mDiskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                2, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+        int maxBytes = (int) (Runtime.getRuntime().maxMemory() / MEMORY_CACHE_DIVIDER);
+        mMemoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
+
+    /**
+     * @return true if a thumbnail can be loaded for the file
+     */
+    public static boolean isImage(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && IMAGE_SUFFIXES.contains(
+                name.substring(dot + 1).toLowerCase(Locale.US));
+    }
+
+    /**
+     * display thumbnail of an image file in the view. the view keeps
+     * what it displays until the thumbnail is ready.
+     * @param file the image file
+     * @param mtime last modified time of the file, so that a changed
+     *              image is not taken from cache
+     * @param view the view
+     */
+    public void load(File file, long mtime, ImageView view) {
+        String key = file.getAbsolutePath() + ":" + mtime;
+        if (key.equals(view.getTag())) {
+            // already loading it for this view
+            return;
+        }
+        cancel(view);
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+        view.setTag(key);
+        Request request = mRequests.get(key);
+        if (request == null) {
+            request = new Request(key, file);
+            mRequests.put(key, request);
+            request.future = mExecutor.submit(request);
+        }
+        request.views.add(view);
+    }
+
+    /**
+     * the view is recycled or displays something else, drop its request.
+     * @param view the view
+     */
+    public void cancel(ImageView view) {
+        Object tag = view.getTag();
+        if (!(tag instanceof String)) {
+            return;
+        }
+        view.setTag(null);
+        Request request = mRequests.get(tag);
+        if (request != null) {
+            request.views.remove(view);
+            if (request.views.isEmpty()) {
+                // nobody is waiting for it
+                request.future.cancel(false);
+                mExecutor.remove((Runnable) request.future);
+                mRequests.remove(tag);
+            }
+        }
+    }
+
+    /**
+     * drop all thumbnails in memory.
+     */
+    public void clearMemoryCache() {
+        mMemoryCache.evictAll();
+    }
+
+    // called in main thread
+    private void onLoaded(Request request, Bitmap bitmap) {
+        if (mRequests.get(request.key) == request) {
+            mRequests.remove(request.key);
+        }
+        if (bitmap != null) {
+            mMemoryCache.put(request.key, bitmap);
+        }
+        for (ImageView view : request.views) {
+            if (request.key.equals(view.getTag())) {
+                view.setTag(null);
+                if (bitmap != null) {
+                    view.setImageBitmap(bitmap);
+                }
+            }
+        }
+    }
+
+    // ================================================================
+    // worker thread
+
+    private Bitmap loadInBackground(Request request) {
+        File cacheFile = new File(mDiskCacheDir, md5(request.key));
+        Bitmap bitmap = null;
+        if (cacheFile.exists()) {
+            bitmap = BitmapFactory.decodeFile(cacheFile.getPath());
+            // mtime marks when it is used, see trimDiskCache()
+            cacheFile.setLastModified(System.currentTimeMillis());
+        }
+        if (bitmap == null) {
+            bitmap = decodeSampled(request.file.getPath());
+            if (bitmap != null) {
+                saveToDisk(bitmap, cacheFile);
+            }
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeSampled(String path) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        // largest power of 2 that keeps both sides no smaller than mSize
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= mSize
+                && options.outHeight / (sampleSize * 2) >= mSize) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    private void saveToDisk(Bitmap bitmap, File cacheFile) {
+        if (!mDiskCacheDir.isDirectory() && !mDiskCacheDir.mkdirs()) {
+            return;
+        }
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(cacheFile)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        if (mDiskWrites.incrementAndGet() % DISK_TRIM_INTERVAL == 0) {
+            trimDiskCache();
+        }
+    }
+
+    // delete the least recently used thumbnails
+    private void trimDiskCache() {
+        File[] files = mDiskCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        final Map<File, Long> mtimes = new HashMap<File, Long>(files.length);
+        for (File f : files) {
+            total += f.length();
+            mtimes.put(f, f.lastModified());
+        }
+        if (total <= DISK_CACHE_SIZE) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long t1 = mtimes.get(f1);
+                long t2 = mtimes.get(f2);
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        for (File f : files) {
+            if (total <= DISK_CACHE_SIZE * 3 / 4) {
+                break;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static String md5(String s) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(s.getBytes("UTF-8"));
+            return new BigInteger(1, bytes).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private class Request implements Runnable {
+        final String key;
+        final File file;
+        // views waiting for this image, only touched in main thread
+        final List<ImageView> views = new ArrayList<ImageView>(1);
+        Future<?> future;
+
+        Request(String key, File file) {
+            this.key = key;
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            final Bitmap bitmap = loadInBackground(this);
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onLoaded(Request.this, bitmap);
+                }
+            });
+        }
+    }
+}